@@ -0,0 +1,34 @@
+package ru.gtncraft.permissions;
+
+import org.bukkit.entity.Player;
+import org.bukkit.event.player.AsyncPlayerChatEvent;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Formatting a chat message, as done on the chat thread for every message.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ChatBenchmark extends Fixture {
+
+    private Listeners listeners;
+
+    @Setup
+    public void setupListeners() {
+        listeners = new Listeners(Stubs.plugin(config), manager);
+    }
+
+    @Benchmark
+    public String chat() {
+        AsyncPlayerChatEvent event = new AsyncPlayerChatEvent(true, nextOnline().player, "&ahello there",
+                Collections.<Player>emptySet());
+        listeners.onPlayerChat(event);
+        return event.getFormat();
+    }
+}
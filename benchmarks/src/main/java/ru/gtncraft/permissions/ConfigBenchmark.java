@@ -0,0 +1,35 @@
+package ru.gtncraft.permissions;
+
+import org.bukkit.configuration.ConfigurationSection;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Looking up nodes in the configuration and applying a change to a group.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ConfigBenchmark extends Fixture {
+
+    private int group;
+
+    @Benchmark
+    public ConfigurationSection getNode() {
+        // user nodes are looked up with whatever case the caller has
+        return manager.getNode("users/" + nextOnline().player.getUniqueId().toString().toUpperCase());
+    }
+
+    @Benchmark
+    public void refreshForGroup() {
+        // flip a node of every group in turn, which recalculates everyone in it or a group inheriting it
+        group = (group + 1) % groupNames.length;
+        String name = groupNames[group];
+        ConfigurationSection node = manager.getNode("groups/" + name + "/permissions");
+        node.set("plugin0.node0", !node.getBoolean("plugin0.node0"));
+        manager.refreshForGroup(name);
+    }
+}
@@ -0,0 +1,132 @@
+package ru.gtncraft.permissions;
+
+import org.bukkit.World;
+import org.bukkit.configuration.ConfigurationSection;
+import org.bukkit.configuration.file.YamlConfiguration;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.*;
+
+/**
+ * A server with a generated configuration and some of its users online. The shape of the configuration is set by
+ * the parameters: groups form chains of {@code depth} groups where every group inherits the one before it.
+ */
+@State(Scope.Benchmark)
+public abstract class Fixture {
+
+    @Param({"1000"})
+    int users;
+    @Param({"20"})
+    int groups;
+    @Param({"4"})
+    int depth;
+    @Param({"100"})
+    int nodes;
+    @Param({"3"})
+    int worlds;
+    @Param({"100"})
+    int online;
+
+    YamlConfiguration config;
+    PermissionManager manager;
+    World[] worldList;
+    // the online players come first
+    Stubs.StubPlayer[] players;
+    String[] groupNames;
+    private int next;
+
+    @Setup
+    public void setupServer() {
+        Stubs.install();
+        Stubs.reset();
+        worldList = new World[worlds];
+        for (int w = 0; w < worlds; w++) {
+            worldList[w] = Stubs.world("world" + w);
+        }
+        config = generate(new Random(42));
+        manager = new PermissionManager(Stubs.plugin(config));
+        players = new Stubs.StubPlayer[users];
+        for (int i = 0; i < users; i++) {
+            players[i] = new Stubs.StubPlayer(new UUID(0, i), "player" + i, worldList[i % worlds]);
+        }
+        for (int i = 0; i < Math.min(online, users); i++) {
+            players[i].join();
+            manager.registerPlayer(players[i].player);
+        }
+    }
+
+    private YamlConfiguration generate(Random random) {
+        YamlConfiguration result = new YamlConfiguration();
+        result.options().pathSeparator('/');
+        result.set("format", "%prefix %name: %message");
+        // the stub scheduler never runs the queue, so players are recalculated right away like before
+        result.set("recalculate-budget", 0);
+        groupNames = new String[groups];
+        for (int g = 0; g < groups; g++) {
+            groupNames[g] = g == 0 ? "default" : "group" + g;
+            ConfigurationSection group = result.createSection("groups/" + groupNames[g]);
+            group.set("prefix", "&7[" + groupNames[g] + "]");
+            if (g % depth != 0) {
+                group.set("inheritance", Collections.singletonList(groupNames[g - 1]));
+            }
+            nodes(random, group.createSection("permissions"), nodes);
+            for (int w = 0; w < worlds; w++) {
+                nodes(random, group.createSection("worlds/world" + w), Math.max(1, nodes / 10));
+            }
+        }
+        for (int i = 0; i < users; i++) {
+            ConfigurationSection user = result.createSection("users/" + new UUID(0, i));
+            user.set("name", "player" + i);
+            List<String> list = new ArrayList<>();
+            list.add(groupNames[random.nextInt(groups)]);
+            if (random.nextInt(4) == 0) {
+                list.add(groupNames[random.nextInt(groups)]);
+            }
+            user.set("groups", list);
+            // most users only have groups and share their permissions, some have their own
+            if (i % 10 == 0) {
+                nodes(random, user.createSection("permissions"), Math.max(1, nodes / 10));
+                nodes(random, user.createSection("worlds/world0"), 1);
+            }
+        }
+        return result;
+    }
+
+    private static void nodes(Random random, ConfigurationSection section, int count) {
+        for (int i = 0; i < count; i++) {
+            // nodes are drawn from a shared pool so groups override each other, some are wildcards
+            int plugin = random.nextInt(20);
+            String node = random.nextInt(10) == 0 ? "plugin" + plugin + ".*" : "plugin" + plugin + ".node" + random.nextInt(50);
+            section.set(node, random.nextInt(5) != 0);
+        }
+    }
+
+    /**
+     * @return The next online player, going round all of them.
+     */
+    Stubs.StubPlayer nextOnline() {
+        next = (next + 1) % Math.min(online, users);
+        return players[next];
+    }
+
+    /**
+     * @return The next player who is offline, going round all of them.
+     */
+    Stubs.StubPlayer nextOffline() {
+        int count = users - Math.min(online, users);
+        if (count == 0) {
+            throw new IllegalStateException("Every user is online");
+        }
+        next = (next + 1) % count;
+        return players[users - count + next];
+    }
+
+    World nextWorld(World current) {
+        for (int w = 0; w < worldList.length; w++) {
+            if (worldList[w] == current) {
+                return worldList[(w + 1) % worldList.length];
+            }
+        }
+        return worldList[0];
+    }
+}
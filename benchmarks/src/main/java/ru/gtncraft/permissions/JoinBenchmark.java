@@ -0,0 +1,25 @@
+package ru.gtncraft.permissions;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A player who is in the configuration joining and leaving again.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class JoinBenchmark extends Fixture {
+
+    @Benchmark
+    public void joinAndQuit() {
+        Stubs.StubPlayer player = nextOffline();
+        player.join();
+        manager.registerPlayer(player.player);
+        manager.unregisterPlayer(player.player);
+        player.quit();
+    }
+}
@@ -0,0 +1,48 @@
+package ru.gtncraft.permissions;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Resolving the permissions of players and groups, with everything which can be cached already cached.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ResolutionBenchmark extends Fixture {
+
+    private int group;
+
+    @Benchmark
+    public Map<String, Boolean> onlinePlayer() {
+        Stubs.StubPlayer player = nextOnline();
+        return manager.calculatePlayerPermissions(player.player, player.world.getName());
+    }
+
+    @Benchmark
+    public Map<String, Boolean> offlinePlayer() {
+        Stubs.StubPlayer player = nextOffline();
+        return manager.calculatePlayerPermissions(player.player, player.world.getName());
+    }
+
+    @Benchmark
+    public Map<String, Boolean> group() {
+        group = (group + 1) % groupNames.length;
+        return manager.calculateGroupPermissions(groupNames[group], worldList[group % worldList.length].getName());
+    }
+
+    @Benchmark
+    public Boolean check() {
+        return manager.getPlayerPermission(nextOnline().player, "plugin7.node7");
+    }
+
+    @Benchmark
+    public Snapshot reload() {
+        manager.reload();
+        return manager.getSnapshot();
+    }
+}
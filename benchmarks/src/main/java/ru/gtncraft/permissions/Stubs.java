@@ -0,0 +1,152 @@
+package ru.gtncraft.permissions;
+
+import org.bukkit.Bukkit;
+import org.bukkit.Server;
+import org.bukkit.World;
+import org.bukkit.configuration.file.FileConfiguration;
+import org.bukkit.entity.Player;
+import org.bukkit.permissions.PermissionAttachment;
+import org.bukkit.plugin.Plugin;
+import org.bukkit.plugin.PluginManager;
+
+import java.lang.reflect.Proxy;
+import java.util.*;
+import java.util.function.Function;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Just enough of a server for the plugin to run in a benchmark: every interface is a proxy which implements a few
+ * methods and returns nothing (or zero, or false) from all others.
+ */
+final class Stubs {
+
+    private static final Logger LOGGER = Logger.getLogger("Permissions");
+    private static final Map<UUID, Player> players = new HashMap<>();
+    private static final List<World> worlds = new ArrayList<>();
+
+    static {
+        LOGGER.setLevel(Level.WARNING);
+    }
+
+    private Stubs() {
+    }
+
+    /**
+     * Installs the server, which knows about the worlds and players created here.
+     */
+    static void install() {
+        if (Bukkit.getServer() != null) {
+            return;
+        }
+        PluginManager pluginManager = stub(PluginManager.class, Collections.emptyMap());
+        Map<String, Function<Object[], Object>> methods = new HashMap<>();
+        methods.put("getLogger", args -> LOGGER);
+        methods.put("getName", args -> "Stub");
+        methods.put("getVersion", args -> "1.0");
+        methods.put("getBukkitVersion", args -> "1.7.10-R0.1-SNAPSHOT");
+        methods.put("getPluginManager", args -> pluginManager);
+        methods.put("getWorlds", args -> Collections.unmodifiableList(worlds));
+        methods.put("getPlayer", args -> args[0] instanceof UUID ? players.get(args[0]) : null);
+        methods.put("getOnlinePlayers", args -> Collections.unmodifiableCollection(players.values()));
+        methods.put("isPrimaryThread", args -> true);
+        Bukkit.setServer(stub(Server.class, methods));
+    }
+
+    /**
+     * Forgets the worlds and players of a previous setup.
+     */
+    static void reset() {
+        players.clear();
+        worlds.clear();
+    }
+
+    static Plugin plugin(FileConfiguration config) {
+        Map<String, Function<Object[], Object>> methods = new HashMap<>();
+        methods.put("getConfig", args -> config);
+        methods.put("getLogger", args -> LOGGER);
+        methods.put("getName", args -> "Permissions");
+        methods.put("isEnabled", args -> true);
+        return stub(Plugin.class, methods);
+    }
+
+    static World world(String name) {
+        World world = stub(World.class, Collections.singletonMap("getName", args -> name));
+        worlds.add(world);
+        return world;
+    }
+
+    /**
+     * A player whose world can be changed. They're only online (as far as the server knows) once joined.
+     */
+    static final class StubPlayer {
+
+        final Player player;
+        World world;
+
+        StubPlayer(UUID uuid, String name, World world) {
+            this.world = world;
+            Map<String, Function<Object[], Object>> methods = new HashMap<>();
+            methods.put("getUniqueId", args -> uuid);
+            methods.put("getName", args -> name);
+            methods.put("getDisplayName", args -> name);
+            methods.put("getWorld", args -> this.world);
+            methods.put("isOnline", args -> players.containsKey(uuid));
+            methods.put("addAttachment", args -> attach((Plugin) args[0]));
+            // the chat benchmark goes through translating colours
+            methods.put("hasPermission", args -> true);
+            this.player = stub(Player.class, methods);
+        }
+
+        private PermissionAttachment attach(Plugin plugin) {
+            return new PermissionAttachment(plugin, player);
+        }
+
+        void join() {
+            players.put(player.getUniqueId(), player);
+        }
+
+        void quit() {
+            players.remove(player.getUniqueId());
+        }
+    }
+
+    static <T> T stub(Class<T> type, Map<String, Function<Object[], Object>> methods) {
+        return type.cast(Proxy.newProxyInstance(Stubs.class.getClassLoader(), new Class<?>[]{type}, (proxy, method, args) -> {
+            Function<Object[], Object> implementation = methods.get(method.getName());
+            if (implementation != null) {
+                return implementation.apply(args);
+            }
+            switch (method.getName()) {
+                case "equals":
+                    return proxy == args[0];
+                case "hashCode":
+                    return System.identityHashCode(proxy);
+                case "toString":
+                    return type.getSimpleName() + "@" + Integer.toHexString(System.identityHashCode(proxy));
+            }
+            return defaultValue(method.getReturnType());
+        }));
+    }
+
+    private static Object defaultValue(Class<?> type) {
+        if (type == boolean.class) {
+            return false;
+        } else if (type == void.class || !type.isPrimitive()) {
+            return null;
+        } else if (type == char.class) {
+            return '\0';
+        } else if (type == long.class) {
+            return 0L;
+        } else if (type == float.class) {
+            return 0f;
+        } else if (type == double.class) {
+            return 0d;
+        } else if (type == byte.class) {
+            return (byte) 0;
+        } else if (type == short.class) {
+            return (short) 0;
+        }
+        return 0;
+    }
+}
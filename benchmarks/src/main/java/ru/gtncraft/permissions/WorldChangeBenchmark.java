@@ -0,0 +1,74 @@
+package ru.gtncraft.permissions;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares merging the resolved groups and the user on every world change, as the plugin used to, with merging
+ * the cached world-independent and world-specific layers of the player. Also measures the whole world change,
+ * including updating the attachment.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class WorldChangeBenchmark extends Fixture {
+
+    private Snapshot snapshot;
+    private Snapshot.Entry user;
+    private Layer base;
+    private Map<String, Layer> overlays;
+    private int next;
+
+    @Setup
+    public void setupLayers() {
+        // a user with permissions of their own, so nothing is shared
+        snapshot = manager.getSnapshot();
+        user = snapshot.getUser(players[0].player.getUniqueId(), null);
+        base = snapshot.getPlayerBase(user);
+        overlays = new HashMap<>();
+        for (int w = 0; w < worlds; w++) {
+            overlays.put(worldList[w].getName(), snapshot.getPlayerOverlay(user, worldList[w].getName()));
+        }
+    }
+
+    private String nextWorld() {
+        next = (next + 1) % worldList.length;
+        return worldList[next].getName();
+    }
+
+    @Benchmark
+    public Map<String, Boolean> resolvedGroups() {
+        // the previous path: merge the resolved (and cached) groups, then the user
+        String world = nextWorld();
+        Map<String, Boolean> perms = new LinkedHashMap<>();
+        for (String group : user.groups) {
+            putAll(perms, snapshot.getGroupPermissions(group, world));
+        }
+        putAll(perms, user.permissions);
+        putAll(perms, user.getWorldPermissions(world));
+        return perms;
+    }
+
+    @Benchmark
+    public Map<String, Boolean> cachedLayers() {
+        return Layer.compose(base, overlays.get(nextWorld()));
+    }
+
+    @Benchmark
+    public void changeWorld() {
+        Stubs.StubPlayer player = nextOnline();
+        player.world = nextWorld(player.world);
+        manager.calculateAttachment(player.player);
+    }
+
+    private static void putAll(Map<String, Boolean> dest, Map<String, Boolean> src) {
+        for (Map.Entry<String, Boolean> entry : src.entrySet()) {
+            dest.remove(entry.getKey());
+            dest.put(entry.getKey(), entry.getValue());
+        }
+    }
+}
@@ -0,0 +1,392 @@
+package ru.gtncraft.permissions;
+
+import org.bukkit.Bukkit;
+import org.bukkit.configuration.ConfigurationSection;
+import org.bukkit.entity.Player;
+
+import java.util.*;
+
+/**
+ * Changes to users and groups which are applied together. However many changes there are, the configuration is saved
+ * once and every affected online player is recalculated once, so bulk changes should go through a single batch:
+ *
+ * <pre>
+ * manager.batch()
+ *        .addUserToGroup(uuid, "vip")
+ *        .setGroupPermission("vip", null, "essentials.fly", true)
+ *        .commit();
+ * </pre>
+ *
+ * Group memberships and permissions can be temporary, they are removed again once the time given for them has
+ * passed, see {@link Expiries}.
+ *
+ * Nothing changes until the batch is committed. A batch is used by one thread and can only be committed once.
+ */
+public final class Batch {
+
+    private final PermissionManager manager;
+    private final List<Runnable> changes = new ArrayList<>();
+    // what the changes touched, by lower-cased key
+    private final Map<String, String> users = new LinkedHashMap<>();
+    private final Map<String, String> groups = new LinkedHashMap<>();
+    // the paths the changes set or removed, each holds its final value once the batch is applied
+    private final Set<String> paths = new LinkedHashSet<>();
+    private boolean committed;
+
+    Batch(PermissionManager manager) {
+        this.manager = manager;
+    }
+
+    /**
+     * Adds a user to a group for good, after the groups they're in already.
+     *
+     * @param user The UUID of the user, who is added to the configuration if needed.
+     * @param group The name of the group.
+     * @return This batch.
+     */
+    public Batch addUserToGroup(final UUID user, final String group) {
+        return addUserToGroup(user, group, 0);
+    }
+
+    /**
+     * Adds a user to a group until a point in time, after the groups they're in already.
+     *
+     * @param user The UUID of the user, who is added to the configuration if needed.
+     * @param group The name of the group.
+     * @param expires When they're removed from it again, in milliseconds since the epoch, or 0 for never.
+     * @return This batch.
+     */
+    public Batch addUserToGroup(final UUID user, final String group, final long expires) {
+        checkName(group);
+        checkExpires(expires);
+        changes.add(() -> {
+            ConfigurationSection node = user(user, true);
+            List<String> list = new ArrayList<>(node.getStringList("groups"));
+            boolean changed = false;
+            if (list.stream().noneMatch(group::equalsIgnoreCase)) {
+                list.add(group);
+                set(node, "groups", list);
+                changed = true;
+            }
+            if (setExpiry(node, "groups/" + group, expires) || changed) {
+                users.put(NodeIndex.key(node.getName()), node.getName());
+            }
+        });
+        return this;
+    }
+
+    /**
+     * Removes a user from a group.
+     *
+     * @param user The UUID of the user.
+     * @param group The name of the group.
+     * @return This batch.
+     */
+    public Batch removeUserFromGroup(final UUID user, final String group) {
+        checkName(group);
+        changes.add(() -> {
+            ConfigurationSection node = user(user, false);
+            if (node == null) {
+                return;
+            }
+            List<String> list = new ArrayList<>(node.getStringList("groups"));
+            boolean changed = false;
+            if (list.removeIf(group::equalsIgnoreCase)) {
+                set(node, "groups", list);
+                changed = true;
+            }
+            if (setExpiry(node, "groups/" + group, 0) || changed) {
+                users.put(NodeIndex.key(node.getName()), node.getName());
+            }
+        });
+        return this;
+    }
+
+    /**
+     * Sets a permission of a user for good, or unsets it.
+     *
+     * @param user The UUID of the user, who is added to the configuration if needed.
+     * @param world The world the permission applies to, or null for every world.
+     * @param permission The permission node.
+     * @param value The value, or null to unset it.
+     * @return This batch.
+     */
+    public Batch setUserPermission(final UUID user, final String world, final String permission, final Boolean value) {
+        return setUserPermission(user, world, permission, value, 0);
+    }
+
+    /**
+     * Sets a permission of a user until a point in time, or unsets it.
+     *
+     * @param user The UUID of the user, who is added to the configuration if needed.
+     * @param world The world the permission applies to, or null for every world.
+     * @param permission The permission node.
+     * @param value The value, or null to unset it.
+     * @param expires When it's unset again, in milliseconds since the epoch, or 0 for never.
+     * @return This batch.
+     */
+    public Batch setUserPermission(final UUID user, final String world, final String permission, final Boolean value,
+                                   final long expires) {
+        checkPermission(world, permission);
+        checkExpires(expires);
+        changes.add(() -> {
+            ConfigurationSection node = user(user, value != null);
+            if (node != null && setPermission(node, world, permission, value, expires)) {
+                users.put(NodeIndex.key(node.getName()), node.getName());
+            }
+        });
+        return this;
+    }
+
+    /**
+     * Sets a permission of a group for good, or unsets it.
+     *
+     * @param group The name of the group, which is added to the configuration if needed.
+     * @param world The world the permission applies to, or null for every world.
+     * @param permission The permission node.
+     * @param value The value, or null to unset it.
+     * @return This batch.
+     */
+    public Batch setGroupPermission(final String group, final String world, final String permission, final Boolean value) {
+        return setGroupPermission(group, world, permission, value, 0);
+    }
+
+    /**
+     * Sets a permission of a group until a point in time, or unsets it.
+     *
+     * @param group The name of the group, which is added to the configuration if needed.
+     * @param world The world the permission applies to, or null for every world.
+     * @param permission The permission node.
+     * @param value The value, or null to unset it.
+     * @param expires When it's unset again, in milliseconds since the epoch, or 0 for never.
+     * @return This batch.
+     */
+    public Batch setGroupPermission(final String group, final String world, final String permission, final Boolean value,
+                                    final long expires) {
+        checkName(group);
+        checkPermission(world, permission);
+        checkExpires(expires);
+        changes.add(() -> {
+            ConfigurationSection node = group(group, value != null);
+            if (node != null && setPermission(node, world, permission, value, expires)) {
+                groups.put(NodeIndex.key(group), group);
+            }
+        });
+        return this;
+    }
+
+    /**
+     * Replaces the groups a group inherits.
+     *
+     * @param group The name of the group, which is added to the configuration if needed.
+     * @param parents The groups it inherits, in order.
+     * @return This batch.
+     */
+    public Batch setInheritance(final String group, final List<String> parents) {
+        checkName(group);
+        for (String parent : parents) {
+            checkName(parent);
+        }
+        List<String> list = new ArrayList<>(parents);
+        changes.add(() -> {
+            ConfigurationSection node = group(group, true);
+            if (!list.equals(node.getStringList("inheritance"))) {
+                set(node, "inheritance", list.isEmpty() ? null : list);
+                groups.put(NodeIndex.key(group), group);
+            }
+        });
+        return this;
+    }
+
+    /**
+     * Sets the chat prefix of a group.
+     *
+     * @param group The name of the group, which is added to the configuration if needed.
+     * @param prefix The prefix, or null to use the name of the group.
+     * @return This batch.
+     */
+    public Batch setPrefix(final String group, final String prefix) {
+        checkName(group);
+        changes.add(() -> {
+            ConfigurationSection node = group(group, true);
+            if (!Objects.equals(prefix, node.getString("prefix"))) {
+                set(node, "prefix", prefix);
+                groups.put(NodeIndex.key(group), group);
+            }
+        });
+        return this;
+    }
+
+    /**
+     * Removes a group. Users in it and groups inheriting it keep the name, so they act like it's empty.
+     *
+     * @param group The name of the group.
+     * @return This batch.
+     */
+    public Batch removeGroup(final String group) {
+        checkName(group);
+        changes.add(() -> {
+            ConfigurationSection node = group(group, false);
+            if (node != null) {
+                set(node.getParent(), node.getName(), null);
+                groups.put(NodeIndex.key(group), group);
+            }
+        });
+        return this;
+    }
+
+    /**
+     * Removes an entry which expired, unless it was changed since.
+     * @param owner The path of the user or group.
+     * @param entry The path of the entry below it, {@code groups/<group>} for a group of a user.
+     * @param time When it expired.
+     * @return This batch.
+     */
+    Batch expire(final String owner, final String entry, final long time) {
+        changes.add(() -> {
+            ConfigurationSection node = manager.getNode(owner);
+            if (node == null) {
+                return;
+            }
+            String path = Journal.resolve(node, Expiries.SECTION + "/" + entry);
+            Object value = node.get(path);
+            if (!(value instanceof Number) || ((Number) value).longValue() != time) {
+                return;
+            }
+            if (entry.regionMatches(true, 0, "groups/", 0, 7)) {
+                String group = entry.substring(7);
+                List<String> list = new ArrayList<>(node.getStringList("groups"));
+                if (list.removeIf(group::equalsIgnoreCase)) {
+                    set(node, "groups", list);
+                }
+            } else {
+                set(node, Journal.resolve(node, entry), null);
+            }
+            removeExpiry(node, path);
+            if (owner.regionMatches(true, 0, "users/", 0, 6)) {
+                users.put(NodeIndex.key(node.getName()), node.getName());
+            } else {
+                groups.put(NodeIndex.key(node.getName()), node.getName());
+            }
+        });
+        return this;
+    }
+
+    /**
+     * Applies the changes in the order they were made, saves the configuration and recalculates the online players
+     * they affect. Must be called on the main thread.
+     *
+     * @throws IllegalStateException If the batch was committed already or this isn't the main thread.
+     */
+    public void commit() {
+        if (committed) {
+            throw new IllegalStateException("The batch was committed already");
+        }
+        if (!Bukkit.isPrimaryThread()) {
+            throw new IllegalStateException("A batch must be committed on the main thread");
+        }
+        committed = true;
+        for (Runnable change : changes) {
+            change.run();
+        }
+        if (!users.isEmpty() || !groups.isEmpty()) {
+            manager.commit(users.values(), groups.values(), paths);
+        }
+    }
+
+    private ConfigurationSection user(UUID uuid, boolean create) {
+        ConfigurationSection node = manager.getNode("users/" + uuid);
+        if (node == null && create) {
+            node = manager.createNode("users/" + uuid);
+            Player player = Bukkit.getServer().getPlayer(uuid);
+            if (player != null) {
+                set(node, "name", player.getName());
+            }
+        }
+        return node;
+    }
+
+    private ConfigurationSection group(String name, boolean create) {
+        return create ? manager.createNode("groups/" + name) : manager.getNode("groups/" + name);
+    }
+
+    // replaces a permission, in any case, returns false if it was set like that already
+    private boolean setPermission(ConfigurationSection node, String world, String permission, Boolean value, long expires) {
+        String path = node.getCurrentPath() + (world != null ? "/worlds/" + world : "/permissions");
+        ConfigurationSection perms = value != null ? manager.createNode(path) : manager.getNode(path);
+        if (perms == null) {
+            return false;
+        }
+        boolean changed = false;
+        for (String key : perms.getKeys(false)) {
+            if (key.equalsIgnoreCase(permission) && !(key.equals(permission) && perms.get(key).equals(value))) {
+                set(perms, key, null);
+                changed = true;
+            }
+        }
+        if (value != null && !value.equals(perms.get(permission))) {
+            set(perms, permission, value);
+            changed = true;
+        }
+        String entry = perms.getCurrentPath().substring(node.getCurrentPath().length() + 1) + "/" + permission;
+        return setExpiry(node, entry, value != null ? expires : 0) || changed;
+    }
+
+    // sets or removes when an entry expires, returns false if that didn't change
+    private boolean setExpiry(ConfigurationSection node, String entry, long expires) {
+        String path = Journal.resolve(node, Expiries.SECTION + "/" + entry);
+        Object current = node.get(path);
+        if (current instanceof Number && ((Number) current).longValue() == expires) {
+            return false;
+        }
+        if (expires != 0) {
+            set(node, path, expires);
+            return true;
+        }
+        return current != null && removeExpiry(node, path);
+    }
+
+    // removes a time and the sections left empty by that
+    private boolean removeExpiry(ConfigurationSection node, String path) {
+        node.set(path, null);
+        for (int split = path.lastIndexOf('/'); split > 0; split = path.lastIndexOf('/')) {
+            String parent = path.substring(0, split);
+            ConfigurationSection section = node.getConfigurationSection(parent);
+            if (section == null || !section.getKeys(false).isEmpty()) {
+                break;
+            }
+            node.set(parent, null);
+            path = parent;
+        }
+        // the topmost section removed covers the ones below it
+        paths.add(node.getCurrentPath() + "/" + path);
+        return true;
+    }
+
+    // sets a value and remembers its path, so only what changed is journaled
+    private void set(ConfigurationSection section, String path, Object value) {
+        section.set(path, value);
+        paths.add(section.getCurrentPath() + "/" + path);
+    }
+
+    private static void checkName(String name) {
+        if (name == null || name.isEmpty() || name.indexOf('/') >= 0) {
+            throw new IllegalArgumentException("Invalid group name: " + name);
+        }
+    }
+
+    private static void checkExpires(long expires) {
+        if (expires < 0) {
+            throw new IllegalArgumentException("Invalid expiry time: " + expires);
+        }
+    }
+
+    private static void checkPermission(String world, String permission) {
+        if (world != null && (world.isEmpty() || world.indexOf('/') >= 0)) {
+            throw new IllegalArgumentException("Invalid world name: " + world);
+        }
+        if (permission == null || permission.isEmpty() || permission.indexOf('/') >= 0) {
+            throw new IllegalArgumentException("Invalid permission: " + permission);
+        }
+    }
+}
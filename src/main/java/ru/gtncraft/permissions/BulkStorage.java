@@ -0,0 +1,31 @@
+package ru.gtncraft.permissions;
+
+import org.bukkit.configuration.ConfigurationSection;
+
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.function.BiConsumer;
+
+/**
+ * A storage keeping users outside the configuration, which can read and write all of them without loading them.
+ */
+interface BulkStorage extends Storage {
+
+    /**
+     * Passes every stored user to a consumer, one at a time, including the changes stored so far. Can be called
+     * from any thread but the one writing the storage.
+     * @param consumer Gets the key and the user, detached from the configuration.
+     * @throws IOException If the users couldn't be read.
+     */
+    void forEachUser(BiConsumer<String, ConfigurationSection> consumer) throws IOException;
+
+    /**
+     * Stores users a batch at a time, replacing those with the same key. Can be called from any thread but the one
+     * writing the storage.
+     * @param users The keys and the users.
+     * @return The number of users stored.
+     * @throws IOException If they couldn't be stored, the batches stored before are kept then.
+     */
+    int importUsers(Iterator<Map.Entry<String, ConfigurationSection>> users) throws IOException;
+}
@@ -0,0 +1,124 @@
+package ru.gtncraft.permissions;
+
+import com.google.common.hash.HashCode;
+import org.bukkit.Bukkit;
+import org.bukkit.configuration.InvalidConfigurationException;
+import org.bukkit.configuration.file.YamlConfiguration;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+
+/**
+ * Reloads the configuration when the file is changed by someone else. Editors write a file in several steps, so it
+ * is only read once nothing happened to it for a moment, and the result is only applied if it's valid.
+ */
+final class ConfigWatcher implements Runnable {
+
+    // how long the data folder has to be quiet before the file is read
+    private static final long DELAY = 1000;
+
+    private final Permissions plugin;
+    private final Path file;
+    private final ConfigWriter writer;
+    private final WatchService service;
+    private final Thread thread;
+    // of the content seen last, so touching the file doesn't reload it
+    private HashCode seen;
+
+    ConfigWatcher(final Permissions plugin, final File file, final ConfigWriter writer) throws IOException {
+        this.plugin = plugin;
+        this.file = file.toPath();
+        this.writer = writer;
+        this.seen = read();
+        this.service = FileSystems.getDefault().newWatchService();
+        this.file.getParent().register(service, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY);
+        this.thread = new Thread(this, "Permissions Watcher");
+        this.thread.setDaemon(true);
+        this.thread.start();
+    }
+
+    /**
+     * Stops watching.
+     */
+    void close() {
+        try {
+            service.close();
+        } catch (IOException ignore) {
+        }
+        thread.interrupt();
+    }
+
+    @Override
+    public void run() {
+        try {
+            while (true) {
+                if (!isChanged(service.take())) {
+                    continue;
+                }
+                // wait for the writes to stop
+                WatchKey key;
+                while ((key = service.poll(DELAY, TimeUnit.MILLISECONDS)) != null) {
+                    key.pollEvents();
+                    key.reset();
+                }
+                check();
+            }
+        } catch (InterruptedException | ClosedWatchServiceException ignore) {
+        }
+    }
+
+    private boolean isChanged(WatchKey key) {
+        boolean result = false;
+        for (WatchEvent<?> event : key.pollEvents()) {
+            // if events were lost the file may be among them
+            if (event.kind() == StandardWatchEventKinds.OVERFLOW || file.getFileName().equals(event.context())) {
+                result = true;
+            }
+        }
+        key.reset();
+        return result;
+    }
+
+    private HashCode read() {
+        try {
+            return ConfigWriter.hash(Files.readAllBytes(file));
+        } catch (IOException ex) {
+            return null;
+        }
+    }
+
+    private void check() {
+        byte[] content;
+        try {
+            content = Files.readAllBytes(file);
+        } catch (NoSuchFileException ex) {
+            // being replaced, there'll be another event
+            return;
+        } catch (IOException ex) {
+            plugin.getLogger().log(Level.WARNING, "Failed to read the changed configuration", ex);
+            return;
+        }
+        HashCode hash = ConfigWriter.hash(content);
+        if (hash.equals(seen) || hash.equals(writer.getLastWritten())) {
+            seen = hash;
+            return;
+        }
+        seen = hash;
+
+        YamlConfiguration config = new YamlConfiguration();
+        config.options().pathSeparator('/');
+        try {
+            config.loadFromString(new String(content, StandardCharsets.UTF_8));
+        } catch (InvalidConfigurationException ex) {
+            // most likely still being edited, the next save will be looked at again
+            plugin.getLogger().warning("The configuration was changed but is invalid, keeping the current one: "
+                    + ex.getMessage().split("\n", 2)[0]);
+            return;
+        }
+        Bukkit.getScheduler().runTask(plugin, () -> plugin.reloadConfig(config, hash));
+    }
+}
@@ -0,0 +1,205 @@
+package ru.gtncraft.permissions;
+
+import com.google.common.hash.HashCode;
+import com.google.common.hash.Hashing;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.bukkit.Bukkit;
+import org.bukkit.configuration.file.FileConfiguration;
+import org.bukkit.configuration.file.YamlConfiguration;
+import org.bukkit.scheduler.BukkitTask;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.logging.Level;
+
+/**
+ * Saves the configuration off the main thread, at most once per interval no matter how often it was changed. With a
+ * journal, changes are appended to it as they're made and the file is only rewritten once the compaction interval
+ * passed or the journal grew large. If a change couldn't be appended, the file is rewritten with every save until
+ * it holds that change. What was appended to the journal is synced to the disk on the writer thread once per tick,
+ * together for all the changes of that tick.
+ */
+final class ConfigWriter {
+
+    private final Permissions plugin;
+    private final File file;
+    private final ExecutorService executor = Executors.newSingleThreadExecutor(
+            new ThreadFactoryBuilder().setNameFormat("Permissions Writer").setDaemon(true).build()
+    );
+    private final BukkitTask task;
+    private final BukkitTask syncTask;
+    private final Metrics metrics;
+    private final Journal journal;
+    private final long compactInterval;
+    private long lastWrite = System.nanoTime();
+    private boolean dirty = false;
+    // users are kept elsewhere, so the ones which are loaded aren't written
+    private boolean skipUsers = false;
+    // of the content written last, so the watcher can tell our own writes from someone else's
+    private volatile HashCode written;
+    // true while a sync of the journal is queued, so a slow disk doesn't make them pile up
+    private final AtomicBoolean syncing = new AtomicBoolean();
+
+    // the journal is compacted early once it holds this many bytes
+    private static final long MAX_JOURNAL = 1 << 20;
+
+    /**
+     * @param interval The ticks between saves.
+     * @param compactInterval The ticks between rewrites of the file while there's a journal.
+     * @param journal The journal, or null to rewrite the file with every save.
+     */
+    ConfigWriter(final Permissions plugin, final File file, final long interval, final long compactInterval,
+                 final Metrics metrics, final Journal journal) {
+        this.plugin = plugin;
+        this.file = file;
+        this.metrics = metrics;
+        this.journal = journal;
+        this.compactInterval = TimeUnit.MILLISECONDS.toNanos(compactInterval * 50);
+        this.task = Bukkit.getScheduler().runTaskTimer(plugin, this::save, interval, interval);
+        this.syncTask = journal != null ? Bukkit.getScheduler().runTaskTimer(plugin, this::sync, 1, 1) : null;
+    }
+
+    // syncs what the last tick appended to the journal
+    private void sync() {
+        if (journal.needsSync() && syncing.compareAndSet(false, true)) {
+            executor.execute(() -> {
+                syncing.set(false);
+                journal.sync();
+            });
+        }
+    }
+
+    /**
+     * Marks the configuration as changed, it will be written with the next save.
+     */
+    void markDirty() {
+        dirty = true;
+    }
+
+    /**
+     * @param skipUsers True to leave the users out of the file, used when they're kept in another storage.
+     */
+    void setSkipUsers(boolean skipUsers) {
+        this.skipUsers = skipUsers;
+    }
+
+    /**
+     * Forgets about pending changes, used when the configuration is about to be replaced by the file on disk.
+     */
+    void discard() {
+        dirty = false;
+    }
+
+    /**
+     * Writes the configuration if it was changed since the last save and isn't only kept in the journal. Must be
+     * called on the main thread.
+     */
+    void save() {
+        save(false);
+    }
+
+    /**
+     * Writes the configuration if it was changed, even if the journal holds the changes. Must be called on the main
+     * thread.
+     */
+    void compact() {
+        save(true);
+    }
+
+    private void save(boolean force) {
+        if (!dirty) {
+            return;
+        }
+        if (!force && journal != null && !journal.isBroken() && System.nanoTime() - lastWrite < compactInterval
+                && journal.size() < MAX_JOURNAL) {
+            return;
+        }
+        dirty = false;
+        lastWrite = System.nanoTime();
+        long start = metrics.start();
+        // copy the tree while nothing can change it, the slow part happens on the writer thread
+        YamlConfiguration copy = new YamlConfiguration();
+        copy.options().pathSeparator('/');
+        PermissionManager.copy(plugin.getConfig(), copy);
+        if (skipUsers) {
+            copy.set("users", null);
+        }
+        // changes from now on go into a new segment, the ones before are in the copy
+        long segment = journal != null ? journal.rotate() : -1;
+        metrics.stop(Metrics.Operation.SAVE, start);
+        executor.execute(() -> {
+            if (write(copy, segment) && journal != null) {
+                journal.compacted(segment);
+            }
+        });
+    }
+
+    /**
+     * Writes any pending change and waits for all writes to finish.
+     */
+    void close() {
+        task.cancel();
+        if (syncTask != null) {
+            syncTask.cancel();
+        }
+        compact();
+        executor.shutdown();
+        try {
+            if (!executor.awaitTermination(30, TimeUnit.SECONDS)) {
+                plugin.getLogger().severe("Timed out while saving configuration");
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * @return The hash of what was written to the file last, or null.
+     */
+    HashCode getLastWritten() {
+        return written;
+    }
+
+    static HashCode hash(byte[] content) {
+        return Hashing.sha256().hashBytes(content);
+    }
+
+    /**
+     * @param segment The last journal segment whose changes are in the file, the one after it is based on it.
+     */
+    private boolean write(FileConfiguration config, long segment) {
+        boolean result = false;
+        long start = metrics.start();
+        Path target = file.toPath();
+        Path temp = target.resolveSibling(file.getName() + ".tmp");
+        try {
+            byte[] content = config.saveToString().getBytes(StandardCharsets.UTF_8);
+            // before the file changes, the watcher may look at it as soon as it does
+            written = hash(content);
+            if (journal != null) {
+                // so the changes made since the copy are replayed onto the file after a crash
+                journal.setBase(segment + 1, written);
+            }
+            Files.write(temp, content);
+            try {
+                Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } catch (AtomicMoveNotSupportedException ex) {
+                Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING);
+            }
+            result = true;
+        } catch (IOException ex) {
+            plugin.getLogger().log(Level.SEVERE, "Failed to save configuration", ex);
+        }
+        metrics.stop(Metrics.Operation.WRITE, start);
+        return result;
+    }
+}
@@ -0,0 +1,146 @@
+package ru.gtncraft.permissions;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Exchanges messages as files in a directory shared by the servers, such as a local folder or a network mount. Every
+ * message is a file of its own, named by the time it was sent, the server and a sequence number; files are written
+ * under a temporary name and moved in place, so nobody reads half a message. Each server delivers the files it didn't
+ * see yet and deletes those older than a minute.
+ */
+final class DirectoryTransport implements Transport, Runnable {
+
+    private static final String SUFFIX = ".msg";
+    // the directory is looked at this often even without events, network mounts usually don't report changes
+    private static final long POLL = 1000;
+    private static final long RETAIN = 60000;
+
+    private final Path folder;
+    private final Logger logger;
+    // tells the messages of this server apart, a new one every start
+    private final String id = UUID.randomUUID().toString();
+    private final AtomicLong sequence = new AtomicLong();
+    // names of the messages in the directory which were delivered or skipped, only used by the thread
+    private final Set<String> seen = new HashSet<>();
+    private volatile Consumer<byte[]> receiver;
+    private WatchService service;
+    private Thread thread;
+
+    DirectoryTransport(final File folder, final Logger logger) throws IOException {
+        if (!folder.isDirectory() && !folder.mkdirs()) {
+            throw new IOException("Failed to create " + folder);
+        }
+        this.folder = folder.toPath();
+        this.logger = logger;
+    }
+
+    @Override
+    public void start(Consumer<byte[]> receiver) throws IOException {
+        this.receiver = receiver;
+        // what is there already was sent before the configuration was loaded
+        seen.addAll(list());
+        service = FileSystems.getDefault().newWatchService();
+        folder.register(service, StandardWatchEventKinds.ENTRY_CREATE);
+        thread = new Thread(this, "Permissions Sync Receiver");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    @Override
+    public void send(byte[] message) throws IOException {
+        String name = String.format("%013d-%s-%06d", System.currentTimeMillis(), id, sequence.incrementAndGet());
+        Path temp = folder.resolve(name + ".tmp");
+        Files.write(temp, message);
+        Path target = folder.resolve(name + SUFFIX);
+        try {
+            Files.move(temp, target, StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException ex) {
+            // some network mounts can't, readers may then see a message being written and skip it as invalid
+            Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    @Override
+    public void run() {
+        try {
+            while (true) {
+                WatchKey key = service.poll(POLL, TimeUnit.MILLISECONDS);
+                if (key != null) {
+                    key.pollEvents();
+                    key.reset();
+                }
+                check();
+            }
+        } catch (InterruptedException | ClosedWatchServiceException ignore) {
+        }
+    }
+
+    private void check() {
+        List<String> names;
+        try {
+            names = list();
+        } catch (IOException ex) {
+            logger.log(Level.WARNING, "Failed to read " + folder, ex);
+            return;
+        }
+        seen.retainAll(names);
+        long now = System.currentTimeMillis();
+        for (String name : names) {
+            Path file = folder.resolve(name);
+            if (seen.add(name) && !name.contains("-" + id + "-")) {
+                try {
+                    receiver.accept(Files.readAllBytes(file));
+                } catch (NoSuchFileException ignore) {
+                    // expired and deleted by another server
+                } catch (IOException ex) {
+                    logger.log(Level.WARNING, "Failed to read " + file, ex);
+                }
+            }
+            if (now - sentAt(name) > RETAIN) {
+                try {
+                    Files.deleteIfExists(file);
+                } catch (IOException ignore) {
+                }
+            }
+        }
+    }
+
+    // the names of the messages, oldest first
+    private List<String> list() throws IOException {
+        List<String> result = new ArrayList<>();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(folder, "*" + SUFFIX)) {
+            for (Path file : files) {
+                result.add(file.getFileName().toString());
+            }
+        }
+        Collections.sort(result);
+        return result;
+    }
+
+    private static long sentAt(String name) {
+        try {
+            return Long.parseLong(name.substring(0, name.indexOf('-')));
+        } catch (RuntimeException ex) {
+            return 0;
+        }
+    }
+
+    @Override
+    public void close() {
+        if (service != null) {
+            try {
+                service.close();
+            } catch (IOException ignore) {
+            }
+            thread.interrupt();
+        }
+    }
+}
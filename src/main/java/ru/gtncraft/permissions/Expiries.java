@@ -0,0 +1,115 @@
+package ru.gtncraft.permissions;
+
+import org.bukkit.configuration.ConfigurationSection;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.PriorityQueue;
+
+/**
+ * Removes temporary group memberships and permissions once they expire. A user or group lists when its entries
+ * expire below {@code expires}, by the path of the entry, in milliseconds since the epoch:
+ *
+ * <pre>
+ * users:
+ *     069a79f4-44e9-4726-a5be-fca90e38aaf5:
+ *         groups:
+ *         - vip
+ *         permissions:
+ *             essentials.fly: true
+ *         expires:
+ *             groups:
+ *                 vip: 1767225600000
+ *             permissions:
+ *                 essentials.fly: 1767225600000
+ * </pre>
+ *
+ * The times are queued whenever a user or group is read, so a tick only looks at the entry due next. Due entries are
+ * removed a limited number at a time, each bunch as a single {@link Batch}, so many expiring at once are spread over
+ * several ticks. With a lazy storage, the entries of offline users expire once they're loaded.
+ *
+ * Main thread only.
+ */
+final class Expiries implements Runnable {
+
+    static final String SECTION = "expires";
+    // entries removed per tick at most
+    private static final int PER_TICK = 50;
+
+    private static final class Expiry implements Comparable<Expiry> {
+
+        final long time;
+        final String owner;
+        final String entry;
+
+        Expiry(long time, String owner, String entry) {
+            this.time = time;
+            this.owner = owner;
+            this.entry = entry;
+        }
+
+        String id() {
+            return NodeIndex.key(owner + "/" + entry);
+        }
+
+        @Override
+        public int compareTo(Expiry other) {
+            return Long.compare(time, other.time);
+        }
+    }
+
+    private final PermissionManager manager;
+    private final PriorityQueue<Expiry> queue = new PriorityQueue<>();
+    // the time queued for each entry, so an entry read again isn't queued twice and one which changed is skipped
+    private final Map<String, Long> scheduled = new HashMap<>();
+
+    Expiries(final PermissionManager manager) {
+        this.manager = manager;
+    }
+
+    /**
+     * Forgets everything queued, called before the configuration is read again.
+     */
+    void clear() {
+        queue.clear();
+        scheduled.clear();
+    }
+
+    /**
+     * Queues the entries of a user or group which was just read.
+     * @param node The user or group.
+     */
+    void schedule(ConfigurationSection node) {
+        ConfigurationSection section = node.getConfigurationSection(SECTION);
+        if (section == null) {
+            return;
+        }
+        for (String entry : section.getKeys(true)) {
+            Object time = section.get(entry);
+            if (time instanceof Number) {
+                Expiry expiry = new Expiry(((Number) time).longValue(), node.getCurrentPath(), entry);
+                Long old = scheduled.put(expiry.id(), expiry.time);
+                if (old == null || old != expiry.time) {
+                    queue.add(expiry);
+                }
+            }
+        }
+    }
+
+    @Override
+    public void run() {
+        long now = System.currentTimeMillis();
+        if (queue.isEmpty() || queue.peek().time > now) {
+            return;
+        }
+        Batch batch = manager.batch();
+        for (int i = 0; i < PER_TICK && !queue.isEmpty() && queue.peek().time <= now; i++) {
+            Expiry expiry = queue.poll();
+            // skipped if the entry was given another time since it was queued
+            if (scheduled.remove(expiry.id(), expiry.time)) {
+                batch.expire(expiry.owner, expiry.entry, expiry.time);
+            }
+        }
+        batch.commit();
+    }
+}
@@ -1,10 +1,8 @@
 package ru.gtncraft.permissions;
 
-import org.bukkit.configuration.ConfigurationSection;
-
 import java.util.ArrayList;
-import java.util.Collections;
 import java.util.List;
+import java.util.Map;
 import java.util.UUID;
 
 public final class Group {
@@ -13,10 +11,10 @@ public final class Group {
     private final String name;
     private final String prefix;
 
-    Group(PermissionManager manager, String name) {
+    Group(PermissionManager manager, String name, String prefix) {
         this.manager = manager;
         this.name = name;
-        this.prefix = manager.getNode("groups/" + name).getString("prefix", name);
+        this.prefix = prefix;
     }
 
     public String getName() {
@@ -28,28 +26,32 @@ public final class Group {
     }
 
     /**
+     * Reads every member from users.db if users are kept there, which blocks until it's done.
+     *
      * @deprecated Use UUIDs instead.
      */
     @Deprecated
     public List<String> getPlayers() {
-        ConfigurationSection users = manager.getNode("users");
-        if (users == null) {
-            return Collections.emptyList();
+        Storage storage = manager.getStorage();
+        if (storage.isLazy()) {
+            List<String> result = new ArrayList<>();
+            for (Map.Entry<String, String> entry : storage.getMembers(name, 0, Integer.MAX_VALUE, false).entrySet()) {
+                result.add(entry.getValue() != null ? entry.getValue() : entry.getKey());
+            }
+            return result;
         }
+        Snapshot data = manager.getSnapshot();
         List<String> result = new ArrayList<>();
-        for (String user : users.getKeys(false)) {
-            ConfigurationSection node = manager.getNode("users/" + user);
-            for (String group : node.getStringList("groups")) {
-                if (name.equalsIgnoreCase(group) && !result.contains(user)) {
-                    // attempt to determine the username
-                    if (node.getString("name") != null) {
-                        // converted node
-                        result.add(node.getString("name"));
-                    } else {
-                        // unconverted node, or UUID node missing "name" element
-                        result.add(user);
-                    }
-                    break;
+        for (String key : data.getMembers(name)) {
+            Snapshot.Entry node = data.getUser(key);
+            if (node != null) {
+                // attempt to determine the username
+                if (node.name != null) {
+                    // converted node
+                    result.add(node.name);
+                } else {
+                    // unconverted node, or UUID node missing "name" element
+                    result.add(node.key);
                 }
             }
         }
@@ -57,32 +59,54 @@ public final class Group {
     }
 
     public List<UUID> getPlayerUUIDs() {
-        ConfigurationSection users = manager.getNode("users");
-        if (users == null) {
-            return Collections.emptyList();
+        return getPlayerUUIDs(0, Integer.MAX_VALUE);
+    }
+
+    /**
+     * Returns a page of the players in this group, ordered by UUID. Players who are only in a group inheriting this
+     * one aren't included. The page is read from users.db if users are kept there, which blocks until it's done.
+     *
+     * @param offset The number of players to skip.
+     * @param limit The maximum number of players to return.
+     * @return The players, fewer than the limit if this is the last page.
+     */
+    public List<UUID> getPlayerUUIDs(int offset, int limit) {
+        if (offset < 0 || limit < 0) {
+            throw new IllegalArgumentException("Offset and limit must not be negative");
         }
         List<UUID> result = new ArrayList<>();
-        for (String user : users.getKeys(false)) {
+        Storage storage = manager.getStorage();
+        if (storage.isLazy()) {
+            // most users aren't loaded, so ask the storage
+            for (String key : storage.getMembers(name, offset, limit, true).keySet()) {
+                result.add(UUID.fromString(key));
+            }
+            return result;
+        }
+        int skipped = 0;
+        for (String key : manager.getSnapshot().getMembers(name)) {
+            if (result.size() == limit) {
+                break;
+            }
             UUID uuid;
             try {
-                uuid = UUID.fromString(user);
+                uuid = UUID.fromString(key);
             } catch (IllegalArgumentException ex) {
                 continue;
             }
-            for (String group : manager.getNode("users/" + user).getStringList("groups")) {
-                if (name.equalsIgnoreCase(group) && !result.contains(uuid)) {
-                    result.add(uuid);
-                    break;
-                }
+            if (skipped < offset) {
+                skipped++;
+            } else {
+                result.add(uuid);
             }
         }
         return result;
     }
 
     public PermissionInfo getInfo() {
-        ConfigurationSection node = manager.getNode("groups/" + name);
+        Snapshot.Entry node = manager.getSnapshot().getGroup(name);
         if (node != null) {
-            return new PermissionInfo(manager, node, "inheritance");
+            return new PermissionInfo(manager, node);
         }
         return null;
     }
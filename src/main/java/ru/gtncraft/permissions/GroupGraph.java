@@ -0,0 +1,102 @@
+package ru.gtncraft.permissions;
+
+import com.google.common.collect.ImmutableList;
+
+import java.util.*;
+import java.util.logging.Logger;
+
+/**
+ * The inheritance graph of all defined groups, built once whenever inheritance may have changed.
+ *
+ * Groups are identified by their lower-cased name, inheritance from groups which are not defined is ignored.
+ */
+final class GroupGraph {
+
+    private final Map<String, String> names = new LinkedHashMap<>();
+    private final Map<String, List<String>> parents = new HashMap<>();
+    private final Map<String, List<String>> children = new HashMap<>();
+    private final Map<String, List<String>> ancestors = new HashMap<>();
+
+    /**
+     * @param inheritance The inheritance lists of every group, by group name, in configuration order.
+     * @param logger Where to warn about recursive inheritance.
+     */
+    GroupGraph(Map<String, List<String>> inheritance, Logger logger) {
+        for (String name : inheritance.keySet()) {
+            names.putIfAbsent(NodeIndex.key(name), name);
+        }
+        for (Map.Entry<String, List<String>> entry : inheritance.entrySet()) {
+            String group = NodeIndex.key(entry.getKey());
+            if (parents.containsKey(group)) {
+                continue;
+            }
+            List<String> list = new ArrayList<>();
+            for (String parent : entry.getValue()) {
+                String key = NodeIndex.key(parent);
+                if (names.containsKey(key) && !list.contains(key)) {
+                    list.add(key);
+                    children.computeIfAbsent(key, k -> new ArrayList<>()).add(group);
+                }
+            }
+            parents.put(group, list);
+        }
+        Set<String> warnings = new LinkedHashSet<>();
+        for (String group : names.keySet()) {
+            List<String> result = new ArrayList<>();
+            linearize(group, group, new HashSet<>(), new HashSet<>(), result, warnings);
+            ancestors.put(group, ImmutableList.copyOf(result));
+        }
+        if (logger != null) {
+            warnings.forEach(logger::warning);
+        }
+    }
+
+    /**
+     * Gets every group with its parents before it, in the order their permissions apply: parents are
+     * applied in the order they are listed, and a group reached twice is only applied the first time.
+     * @param group The group.
+     * @return The configured names of the group and its ancestors, empty if the group is not defined.
+     */
+    List<String> getAncestors(String group) {
+        List<String> result = ancestors.get(NodeIndex.key(group));
+        return result == null ? ImmutableList.of() : result;
+    }
+
+    /**
+     * Gets the group and every group which inherits from it, directly or not.
+     * @param group The group.
+     * @return The lower-cased names of the group and its descendants.
+     */
+    Set<String> getDescendants(String group) {
+        String key = NodeIndex.key(group);
+        Set<String> result = new LinkedHashSet<>();
+        result.add(key);
+        Deque<String> queue = new ArrayDeque<>();
+        queue.add(key);
+        while (!queue.isEmpty()) {
+            for (String child : children.getOrDefault(queue.poll(), ImmutableList.of())) {
+                if (result.add(child)) {
+                    queue.add(child);
+                }
+            }
+        }
+        return result;
+    }
+
+    private void linearize(String root, String group, Set<String> path, Set<String> visited, List<String> result, Set<String> warnings) {
+        visited.add(group);
+        path.add(group);
+        for (String parent : parents.get(group)) {
+            if (path.contains(parent)) {
+                // every edge of a cycle is reported once, when walking from the group it points back to
+                if (parent.equals(root)) {
+                    warnings.add("In group " + names.get(group) + ": recursive inheritance from " + names.get(parent));
+                }
+            } else if (!visited.contains(parent)) {
+                linearize(root, parent, path, visited, result, warnings);
+            }
+        }
+        path.remove(group);
+        result.add(names.get(group));
+    }
+}
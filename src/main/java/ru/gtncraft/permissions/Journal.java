@@ -0,0 +1,521 @@
+package ru.gtncraft.permissions;
+
+import com.google.common.hash.HashCode;
+import org.bukkit.configuration.ConfigurationSection;
+import org.bukkit.configuration.InvalidConfigurationException;
+import org.bukkit.configuration.file.YamlConfiguration;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+
+/**
+ * An append-only log of the changes made to the configuration since it was last written, so a change costs a small
+ * append rather than rewriting config.yml. The log is split into segments: writing the configuration starts a new
+ * segment, and once the file is written the segments before it are deleted.
+ *
+ * Each segment starts with the hash of the file its changes are based on, that is config.yml with the changes of
+ * every segment before it, which is filled in once the file is written. When the configuration is loaded, the changes
+ * from the oldest segment based on that file onwards are replayed onto it. If there is no such segment, the file was
+ * changed by someone else and the journal is set aside instead.
+ *
+ * A record is handed to the operating system as it's appended, so it survives the server crashing. It's synced to
+ * the disk by {@link #sync()} on the writer thread, which the writer runs at most once per tick for every record
+ * appended since, so a power loss can only take the changes of the last tick or so.
+ *
+ * Each record is framed with its length and checksum, so a record torn by a crash ends the replay instead of
+ * corrupting it. Appended to on the main thread only; the segments are synced and deleted on the writer thread.
+ */
+final class Journal implements Closeable {
+
+    /**
+     * What a record does.
+     */
+    enum Operation {
+        /** Replaces the value at a path, or removes it. */
+        SET,
+        /** Moves a user to another key. */
+        RENAME
+    }
+
+    private static final String SUFFIX = ".log";
+    // segments set aside because the file was changed by someone else
+    private static final String BACKUP_SUFFIX = ".bak";
+    private static final int MAX_RECORD = 16 << 20;
+    private static final int MAGIC = 0x504a4e31;
+    // the magic number and the hash of the file the segment is based on, zeros until that's known
+    private static final int HASH_SIZE = 32;
+    private static final int HEADER = 4 + HASH_SIZE;
+
+    /**
+     * A segment open for appending.
+     */
+    private static final class Segment {
+
+        final long id;
+        final DataOutputStream out;
+        final FileChannel channel;
+
+        Segment(long id, File file, HashCode base) throws IOException {
+            this.id = id;
+            boolean created = file.length() == 0;
+            FileOutputStream stream = new FileOutputStream(file, true);
+            this.channel = stream.getChannel();
+            this.out = new DataOutputStream(new BufferedOutputStream(stream));
+            if (created) {
+                out.writeInt(MAGIC);
+                out.write(base != null ? base.asBytes() : new byte[HASH_SIZE]);
+                out.flush();
+            }
+        }
+
+        void close() {
+            try {
+                out.close();
+            } catch (IOException ignore) {
+            }
+        }
+    }
+
+    private final File folder;
+    private final Logger logger;
+    // appended to, null if it couldn't be opened
+    private volatile Segment current;
+    // segments which were rotated out and are closed once they're synced
+    private final Queue<Segment> retired = new ConcurrentLinkedQueue<>();
+    // true if something was appended or rotated out since the last sync
+    private final AtomicBoolean unsynced = new AtomicBoolean();
+    private long segment;
+    // the last segment which is missing a change, or -1 if nothing is missing since it was compacted
+    private final AtomicLong broken = new AtomicLong(-1);
+    private long size;
+
+    Journal(final File folder, final Logger logger) throws IOException {
+        this.folder = folder;
+        this.logger = logger;
+        if (!folder.isDirectory() && !folder.mkdirs()) {
+            throw new IOException("Failed to create " + folder);
+        }
+        List<Long> segments = segments();
+        segment = segments.isEmpty() ? 0 : segments.get(segments.size() - 1) + 1;
+        open(null);
+    }
+
+    /**
+     * @return False if there may be changes which weren't written to the configuration yet.
+     */
+    boolean isEmpty() {
+        return segments().size() <= 1 && size == 0;
+    }
+
+    /**
+     * @return True if a change couldn't be recorded since the configuration was last written, it then has to be
+     * written with every change.
+     */
+    boolean isBroken() {
+        return broken.get() >= 0;
+    }
+
+    /**
+     * @return The number of bytes appended since the configuration was last written.
+     */
+    long size() {
+        return size;
+    }
+
+    /**
+     * Records the current value of a path.
+     * @param root The configuration.
+     * @param path The path, its value is removed if it isn't set.
+     */
+    void set(ConfigurationSection root, String path) {
+        YamlConfiguration value = new YamlConfiguration();
+        value.options().pathSeparator('/');
+        Object current = root.get(path);
+        if (current instanceof ConfigurationSection) {
+            PermissionManager.copy((ConfigurationSection) current, value.createSection("value"));
+        } else {
+            value.set("value", current);
+        }
+        append(Operation.SET, path, value.saveToString());
+    }
+
+    void rename(String from, String to) {
+        append(Operation.RENAME, from, to);
+    }
+
+    private void append(Operation operation, String first, String second) {
+        Segment target = current;
+        if (target == null) {
+            fail(segment);
+            return;
+        }
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            DataOutputStream record = new DataOutputStream(bytes);
+            record.writeByte(operation.ordinal());
+            writeString(record, first);
+            writeString(record, second);
+            byte[] payload = bytes.toByteArray();
+            CRC32 crc = new CRC32();
+            crc.update(payload);
+            target.out.writeInt(payload.length);
+            target.out.writeLong(crc.getValue());
+            target.out.write(payload);
+            // the disk is synced later, a change which reached the system already survives the server crashing
+            target.out.flush();
+            size += 12 + payload.length;
+            unsynced.set(true);
+        } catch (IOException ex) {
+            logger.log(Level.SEVERE, "Failed to append to the journal, changes are only saved with the configuration", ex);
+            retire();
+            fail(segment);
+        }
+    }
+
+    // the change is only in memory until the configuration is written
+    private void fail(long id) {
+        broken.accumulateAndGet(id, Math::max);
+    }
+
+    /**
+     * @return True if something was appended since the last {@link #sync()}.
+     */
+    boolean needsSync() {
+        return unsynced.get();
+    }
+
+    /**
+     * Syncs what was appended to the disk, all at once. Called on the writer thread.
+     */
+    synchronized void sync() {
+        unsynced.set(false);
+        for (Segment old; (old = retired.poll()) != null; ) {
+            force(old);
+            old.close();
+        }
+        Segment target = current;
+        if (target != null) {
+            force(target);
+        }
+    }
+
+    private void force(Segment target) {
+        try {
+            target.channel.force(false);
+        } catch (IOException ex) {
+            // the records may not have reached the disk, so the configuration has to be written to be sure
+            logger.log(Level.SEVERE, "Failed to sync the journal, changes are only saved with the configuration", ex);
+            fail(target.id);
+        }
+    }
+
+    /**
+     * Starts a new segment, called when the configuration is copied to be written.
+     * @return The last segment whose changes are in the copy.
+     */
+    long rotate() {
+        return rotate(null);
+    }
+
+    private long rotate(HashCode base) {
+        retire();
+        long result = segment++;
+        try {
+            open(base);
+        } catch (IOException ex) {
+            logger.log(Level.SEVERE, "Failed to start a new journal segment", ex);
+            fail(segment);
+        }
+        return result;
+    }
+
+    // stops appending to the current segment, it's still synced before it's closed
+    private void retire() {
+        Segment old = current;
+        if (old != null) {
+            current = null;
+            retired.add(old);
+            unsynced.set(true);
+        }
+    }
+
+    /**
+     * Deletes the segments whose changes were written to the configuration. Can be called from any thread.
+     * @param last The result of {@link #rotate()} when the written copy was made.
+     */
+    synchronized void compacted(long last) {
+        // the changes are in the file, so there's no need to sync them
+        closeRetired(last);
+        for (long id : segments()) {
+            if (id <= last && !file(id).delete()) {
+                logger.warning("Failed to delete " + file(id));
+            }
+        }
+        broken.updateAndGet(id -> id <= last ? -1 : id);
+    }
+
+    private void closeRetired(long last) {
+        retired.removeIf(old -> {
+            if (old.id <= last) {
+                old.close();
+                return true;
+            }
+            return false;
+        });
+    }
+
+    /**
+     * Records the file a segment is based on. Called on the writer thread before that file replaces config.yml.
+     * @param id The segment started by the {@link #rotate()} before the file was copied.
+     * @param content The hash of the file.
+     */
+    void setBase(long id, HashCode content) {
+        File file = file(id);
+        if (!file.isFile()) {
+            return;
+        }
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.WRITE)) {
+            channel.write(ByteBuffer.wrap(content.asBytes()), 4);
+            channel.force(false);
+        } catch (IOException ex) {
+            // the segment wouldn't be replayed onto the file, so the file has to hold its changes
+            logger.log(Level.SEVERE, "Failed to update the journal, changes are only saved with the configuration", ex);
+            fail(id);
+        }
+    }
+
+    /**
+     * Applies the changes missing from a configuration which was just loaded, up to the first damaged record. Those
+     * are the changes of the oldest segment based on the file and of every segment after it.
+     * @param root The configuration.
+     * @param content The hash of the file it was loaded from.
+     * @return The number of changes applied, or -1 if no segment is based on the file, nothing is applied then.
+     */
+    int replay(ConfigurationSection root, HashCode content) {
+        List<Long> ids = segments();
+        for (int i = 0; i < ids.size(); i++) {
+            if (content.equals(base(ids.get(i)))) {
+                int count = read(ids.subList(i, ids.size()), root);
+                Segment target = current;
+                // a segment started before the file was loaded is based on it
+                if (target != null && base(target.id) == null) {
+                    setBase(target.id, content);
+                }
+                return count;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Sets every recorded change aside, used when the file was changed by someone else and wins over the journal.
+     * The segments holding changes are kept as backups until the next time, replacing the ones kept before.
+     * @param content The hash of the file, changes from now on are based on it.
+     * @return The number of changes set aside.
+     */
+    synchronized int discard(HashCode content) {
+        long last = rotate(content);
+        List<Long> ids = new ArrayList<>();
+        for (long id : segments()) {
+            if (id <= last) {
+                ids.add(id);
+            }
+        }
+        int count = read(ids, null);
+        if (count > 0) {
+            String[] names = folder.list();
+            for (String name : names != null ? names : new String[0]) {
+                if (name.endsWith(BACKUP_SUFFIX) && !new File(folder, name).delete()) {
+                    logger.warning("Failed to delete " + name);
+                }
+            }
+            closeRetired(last);
+            for (long id : ids) {
+                if (file(id).length() > HEADER && !file(id).renameTo(new File(folder, id + BACKUP_SUFFIX))) {
+                    logger.warning("Failed to keep " + file(id) + " as a backup");
+                }
+            }
+        }
+        compacted(last);
+        return count;
+    }
+
+    // the hash of the file a segment is based on, null if that isn't known
+    private HashCode base(long id) {
+        try (DataInputStream in = new DataInputStream(new FileInputStream(file(id)))) {
+            byte[] hash = new byte[HASH_SIZE];
+            if (in.readInt() != MAGIC) {
+                return null;
+            }
+            in.readFully(hash);
+            for (byte b : hash) {
+                if (b != 0) {
+                    return HashCode.fromBytes(hash);
+                }
+            }
+        } catch (IOException ignore) {
+        }
+        return null;
+    }
+
+    // applies the records of segments, or only counts them if root is null
+    private int read(List<Long> ids, ConfigurationSection root) {
+        int count = 0;
+        for (long id : ids) {
+            try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file(id))))) {
+                if (in.readInt() != MAGIC) {
+                    throw new IOException("not a journal segment");
+                }
+                in.skipBytes(HASH_SIZE);
+                while (true) {
+                    int length;
+                    try {
+                        length = in.readInt();
+                    } catch (EOFException ex) {
+                        break;
+                    }
+                    if (length < 0 || length > MAX_RECORD) {
+                        throw new IOException("invalid length " + length);
+                    }
+                    long checksum = in.readLong();
+                    byte[] payload = new byte[length];
+                    in.readFully(payload);
+                    CRC32 crc = new CRC32();
+                    crc.update(payload);
+                    if (crc.getValue() != checksum) {
+                        throw new IOException("checksum mismatch");
+                    }
+                    if (root != null) {
+                        DataInputStream record = new DataInputStream(new ByteArrayInputStream(payload));
+                        apply(root, Operation.values()[record.readUnsignedByte()], readString(record), readString(record));
+                    }
+                    count++;
+                }
+            } catch (IOException | RuntimeException ex) {
+                // a record torn by a crash, nothing after it can be trusted
+                if (root != null) {
+                    logger.warning("The journal " + file(id).getName() + " ends with a damaged record, replayed "
+                            + count + " changes: " + ex);
+                }
+                break;
+            }
+        }
+        return count;
+    }
+
+    private static void apply(ConfigurationSection root, Operation operation, String first, String second)
+            throws IOException {
+        switch (operation) {
+            case SET:
+                YamlConfiguration value = new YamlConfiguration();
+                value.options().pathSeparator('/');
+                try {
+                    value.loadFromString(second);
+                } catch (InvalidConfigurationException ex) {
+                    throw new IOException(ex);
+                }
+                String path = resolve(root, first);
+                root.set(path, null);
+                if (value.isConfigurationSection("value")) {
+                    PermissionManager.copy(value.getConfigurationSection("value"), root.createSection(path));
+                } else if (value.get("value") != null) {
+                    root.set(path, value.get("value"));
+                }
+                break;
+            case RENAME:
+                String from = resolve(root, "users/" + first);
+                ConfigurationSection user = root.getConfigurationSection(from);
+                if (user != null) {
+                    String to = resolve(root, "users/" + second);
+                    root.set(to, null);
+                    PermissionManager.copy(user, root.createSection(to));
+                    root.set(from, null);
+                }
+                break;
+        }
+    }
+
+    /**
+     * Finds the path of an existing key which differs only in case, like the configuration is searched.
+     */
+    static String resolve(ConfigurationSection root, String path) {
+        ConfigurationSection section = root;
+        StringBuilder result = new StringBuilder();
+        for (String part : path.split("/")) {
+            String key = part;
+            if (section != null) {
+                for (String existing : section.getKeys(false)) {
+                    if (existing.equalsIgnoreCase(part)) {
+                        key = existing;
+                        break;
+                    }
+                }
+                section = section.getConfigurationSection(key);
+            }
+            if (result.length() > 0) {
+                result.append('/');
+            }
+            result.append(key);
+        }
+        return result.toString();
+    }
+
+    /**
+     * Syncs and closes every segment, nothing can be appended afterwards.
+     */
+    @Override
+    public synchronized void close() {
+        retire();
+        sync();
+    }
+
+    private void open(HashCode base) throws IOException {
+        File file = file(segment);
+        current = new Segment(segment, file, base);
+        size = file.length() - HEADER;
+    }
+
+    private File file(long id) {
+        return new File(folder, id + SUFFIX);
+    }
+
+    // the ids of the segments on disk, oldest first
+    private List<Long> segments() {
+        List<Long> result = new ArrayList<>();
+        String[] names = folder.list();
+        if (names != null) {
+            for (String name : names) {
+                if (name.endsWith(SUFFIX)) {
+                    try {
+                        result.add(Long.parseLong(name.substring(0, name.length() - SUFFIX.length())));
+                    } catch (NumberFormatException ignore) {
+                    }
+                }
+            }
+        }
+        Collections.sort(result);
+        return result;
+    }
+
+    static void writeString(DataOutputStream out, String value) throws IOException {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    static String readString(DataInputStream in) throws IOException {
+        byte[] bytes = new byte[in.readInt()];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,161 @@
+package ru.gtncraft.permissions;
+
+import java.util.Arrays;
+import java.util.Map;
+
+/**
+ * Part of a resolution, such as the world-independent or the world-specific permissions of a player. Every node
+ * remembers the step of the resolution which set it last, so two parts can be merged as if all steps had been
+ * applied one after another: later steps win, and nodes are ordered by the step which set them.
+ *
+ * Groups and users use even steps for their permissions and the following odd step for their world permissions,
+ * so the world-independent and the world-specific part never share a step. Nodes are stored by their number in
+ * the {@link SymbolTable}.
+ */
+final class Layer {
+
+    static final Layer EMPTY = new Layer(new int[0], new long[0], new int[0], 0);
+
+    private final int[] ids;
+    private final long[] values;
+    private final int[] steps;
+    private final int size;
+    private final int[] sorted;
+    private final int[] positions;
+
+    private Layer(int[] ids, long[] values, int[] steps, int size) {
+        this.ids = ids;
+        this.values = values;
+        this.steps = steps;
+        this.size = size;
+        this.sorted = new int[size];
+        this.positions = new int[size];
+        PermissionSet.sort(ids, size, sorted, positions);
+    }
+
+    /**
+     * Creates a layer from a single step.
+     * @param perms The permissions set by the step.
+     * @param step The step.
+     * @return The layer.
+     */
+    static Layer of(Map<String, Boolean> perms, int step) {
+        if (perms.isEmpty()) {
+            return EMPTY;
+        }
+        int[] ids = new int[perms.size()];
+        long[] values = bits(ids.length);
+        int[] steps = new int[ids.length];
+        int i = 0;
+        for (Map.Entry<String, Boolean> entry : perms.entrySet()) {
+            ids[i] = SymbolTable.NODES.id(entry.getKey());
+            PermissionSet.set(values, i, entry.getValue());
+            steps[i] = step;
+            i++;
+        }
+        return new Layer(ids, values, steps, ids.length);
+    }
+
+    private static long[] bits(int size) {
+        return new long[(size + 63) >>> 6];
+    }
+
+    /**
+     * Estimates the heap this takes.
+     * @return The size in bytes, not counting the node strings.
+     */
+    long estimateSize() {
+        // object header and fields, five arrays with their headers
+        return 128 + (ids.length + steps.length + sorted.length + positions.length) * 4L + values.length * 8L;
+    }
+
+    private int indexOf(int id) {
+        return PermissionSet.find(sorted, positions, id);
+    }
+
+    /**
+     * Applies the steps of another layer after the steps of this one.
+     * @param other The layer to apply.
+     * @param offset The number of steps in this layer, added to the steps of the other one.
+     * @return The combined layer.
+     */
+    Layer append(Layer other, int offset) {
+        if (other.size == 0) {
+            return this;
+        }
+        int[] ids = new int[size + other.size];
+        long[] values = bits(ids.length);
+        int[] steps = new int[ids.length];
+        int n = 0;
+        for (int i = 0; i < size; i++) {
+            // a later step setting the node bumps it to the end
+            if (other.indexOf(this.ids[i]) < 0) {
+                ids[n] = this.ids[i];
+                PermissionSet.set(values, n, PermissionSet.get(this.values, i));
+                steps[n] = this.steps[i];
+                n++;
+            }
+        }
+        for (int i = 0; i < other.size; i++) {
+            ids[n] = other.ids[i];
+            PermissionSet.set(values, n, PermissionSet.get(other.values, i));
+            steps[n] = other.steps[i] + offset;
+            n++;
+        }
+        if (n < ids.length) {
+            ids = Arrays.copyOf(ids, n);
+            values = Arrays.copyOf(values, (n + 63) >>> 6);
+            steps = Arrays.copyOf(steps, n);
+        }
+        return new Layer(ids, values, steps, n);
+    }
+
+    /**
+     * Merges two layers whose steps interleave into the permissions they resolve to.
+     * @param base The world-independent layer.
+     * @param overlay The world-specific layer.
+     * @return The permissions, in the same order as applying every step one after another would give.
+     */
+    static PermissionSet compose(Layer base, Layer overlay) {
+        int[] ids = new int[base.size + overlay.size];
+        long[] values = bits(ids.length);
+        int n = 0;
+        // both are ordered by step, so this is a merge of two sorted lists minus the overridden nodes
+        int i = base.next(0, overlay), j = overlay.next(0, base);
+        while (i < base.size || j < overlay.size) {
+            if (j == overlay.size || (i < base.size && base.steps[i] < overlay.steps[j])) {
+                ids[n] = base.ids[i];
+                PermissionSet.set(values, n++, PermissionSet.get(base.values, i));
+                i = base.next(i + 1, overlay);
+            } else {
+                ids[n] = overlay.ids[j];
+                PermissionSet.set(values, n++, PermissionSet.get(overlay.values, j));
+                j = overlay.next(j + 1, base);
+            }
+        }
+        if (n == 0) {
+            return PermissionSet.EMPTY;
+        }
+        // only keep as much as is used, these are the ones which are shared and kept around
+        if (n < ids.length) {
+            ids = Arrays.copyOf(ids, n);
+            values = Arrays.copyOf(values, (n + 63) >>> 6);
+        }
+        return new PermissionSet(ids, values, n);
+    }
+
+    // the first node at or after the given index which isn't set again by a later step of the other layer
+    private int next(int from, Layer other) {
+        if (other.size == 0) {
+            return from;
+        }
+        while (from < size) {
+            int i = other.indexOf(ids[from]);
+            if (i < 0 || other.steps[i] < steps[from]) {
+                break;
+            }
+            from++;
+        }
+        return from;
+    }
+}
@@ -7,21 +7,37 @@ import org.bukkit.event.EventHandler;
 import org.bukkit.event.EventPriority;
 import org.bukkit.event.Listener;
 import org.bukkit.event.player.AsyncPlayerChatEvent;
+import org.bukkit.event.player.AsyncPlayerPreLoginEvent;
 import org.bukkit.event.player.PlayerChangedWorldEvent;
+import org.bukkit.event.player.PlayerCommandPreprocessEvent;
 import org.bukkit.event.player.PlayerJoinEvent;
+import org.bukkit.event.player.PlayerLoginEvent;
 import org.bukkit.event.player.PlayerQuitEvent;
-
-import java.util.List;
+import org.bukkit.plugin.Plugin;
 
 final class Listeners implements Listener {
 
-    private final String format;
     private final PermissionManager manager;
 
-    public Listeners(final Permissions plugin) {
+    public Listeners(final Plugin plugin, final PermissionManager manager) {
         Bukkit.getServer().getPluginManager().registerEvents(this, plugin);
-        manager = plugin.getManager();
-        format = ChatColor.translateAlternateColorCodes('&', plugin.getConfig().getString("format"));
+        this.manager = manager;
+    }
+
+    @EventHandler(priority = EventPriority.MONITOR)
+    @SuppressWarnings("unused")
+    void onPlayerPreLogin(final AsyncPlayerPreLoginEvent event) {
+        if (event.getLoginResult() == AsyncPlayerPreLoginEvent.Result.ALLOWED) {
+            manager.preparePlayer(event.getUniqueId(), event.getName());
+        }
+    }
+
+    @EventHandler(priority = EventPriority.MONITOR)
+    @SuppressWarnings("unused")
+    void onPlayerLoginResult(final PlayerLoginEvent event) {
+        if (event.getResult() != PlayerLoginEvent.Result.ALLOWED) {
+            manager.discardPrepared(event.getPlayer().getUniqueId());
+        }
     }
 
     @EventHandler(priority = EventPriority.HIGHEST)
@@ -42,21 +58,24 @@ final class Listeners implements Listener {
         manager.calculateAttachment(event.getPlayer());
     }
 
+    // commands check permissions, so a player waiting to be recalculated is recalculated first
+    @EventHandler(priority = EventPriority.LOWEST, ignoreCancelled = true)
+    @SuppressWarnings("unused")
+    void onPlayerCommand(final PlayerCommandPreprocessEvent event) {
+        manager.recalculateIfQueued(event.getPlayer());
+    }
+
     @EventHandler(priority = EventPriority.LOWEST, ignoreCancelled = true)
     @SuppressWarnings("unused")
     void onPlayerChat(final AsyncPlayerChatEvent event) {
         Player player = event.getPlayer();
-        List<Group> groups = manager.getGroups(player.getName());
-        Group group = groups.get(0);
-
-        String message = format.replace("%name", "%1$s");
-        message = message.replace("%message", "%2$s");
-        message = message.replace("%prefix",  ChatColor.translateAlternateColorCodes('&',group.getPrefix()));
+        // on a chat thread, so the player can only be moved up the queue
+        manager.getRecalculations().prioritize(player.getUniqueId());
 
         if (player.hasPermission("permissions.chat.color")) {
             event.setMessage(ChatColor.translateAlternateColorCodes('&', event.getMessage()));
         }
 
-        event.setFormat(message);
+        event.setFormat(manager.getChatFormat(player));
     }
 }
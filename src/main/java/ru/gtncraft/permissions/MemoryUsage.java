@@ -0,0 +1,65 @@
+package ru.gtncraft.permissions;
+
+/**
+ * Memory kept by the resolved permissions of groups and online players, see {@link PermissionManager#getMemoryUsage()}.
+ */
+public final class MemoryUsage {
+
+    private final int nodes;
+    private final int players;
+    private final int sets;
+    private final long size;
+    private final long heapUsed;
+    private final long heapMax;
+
+    MemoryUsage(int nodes, int players, int sets, long size, long heapUsed, long heapMax) {
+        this.nodes = nodes;
+        this.players = players;
+        this.sets = sets;
+        this.size = size;
+        this.heapUsed = heapUsed;
+        this.heapMax = heapMax;
+    }
+
+    /**
+     * @return The number of distinct permission nodes which were ever read.
+     */
+    public int getNodes() {
+        return nodes;
+    }
+
+    /**
+     * @return The number of online players.
+     */
+    public int getPlayers() {
+        return players;
+    }
+
+    /**
+     * @return The number of distinct resolved layers and permission sets which are cached.
+     */
+    public int getSets() {
+        return sets;
+    }
+
+    /**
+     * @return The estimated size of those in bytes, not counting the node strings and lookup tries.
+     */
+    public long getSize() {
+        return size;
+    }
+
+    /**
+     * @return The heap used by the whole server in bytes.
+     */
+    public long getHeapUsed() {
+        return heapUsed;
+    }
+
+    /**
+     * @return The maximum heap in bytes.
+     */
+    public long getHeapMax() {
+        return heapMax;
+    }
+}
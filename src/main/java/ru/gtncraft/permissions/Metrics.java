@@ -0,0 +1,243 @@
+package ru.gtncraft.permissions;
+
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * How often the expensive operations of the plugin run and how long they take, along with the hit rates of its
+ * caches. Timings and cache statistics are only recorded while enabled (see {@code metrics} in the configuration),
+ * otherwise recording them costs a field read. Recalculations are always counted.
+ *
+ * Can be read from any thread; the values are only consistent with each other as far as that matters for
+ * statistics.
+ */
+public final class Metrics {
+
+    /**
+     * An operation which is timed.
+     */
+    public enum Operation {
+        /** Reading the configuration from disk and rebuilding everything from it. */
+        RELOAD,
+        /** Reading the permissions below one node of the configuration. */
+        READ_PERMISSIONS,
+        /** Resolving and applying the permissions of a player who joined. */
+        JOIN,
+        /** Resolving and applying the permissions of an online player. */
+        CALCULATE_ATTACHMENT,
+        /** Applying a change to a user. */
+        REFRESH_PLAYER,
+        /** Applying a change to a group. */
+        REFRESH_GROUP,
+        /** Applying a batch of changes to users and groups. */
+        COMMIT,
+        /** Copying the configuration on the main thread so it can be written. */
+        SAVE,
+        /** Writing the configuration to disk. */
+        WRITE
+    }
+
+    /**
+     * A cache with a hit rate.
+     */
+    public enum Cache {
+        /** The resolved layers of a group, shared by everyone in it. */
+        GROUPS,
+        /** The resolved permissions of everyone without permissions of their own, by groups and world. */
+        SHARED,
+        /** The resolved layers of an online player, reused until their groups or entry change. */
+        PLAYERS,
+        /** Permissions resolved in the background ahead of a join. */
+        PREPARED,
+        /** Offline users read from a storage other than config.yml. */
+        OFFLINE
+    }
+
+    /**
+     * A count which is always kept.
+     */
+    public enum Counter {
+        /** A player's permissions were recalculated but nothing changed, so the server wasn't told. */
+        SKIPPED_RECALCULATIONS,
+        /** Only the end of a player's permissions changed and just that part was replaced. */
+        PARTIAL_RECALCULATIONS,
+        /** A player's permissions were replaced entirely. */
+        FULL_RECALCULATIONS
+    }
+
+    // bucket i holds durations of less than 2^i nanoseconds which don't fit into bucket i - 1
+    private static final int BUCKETS = 64;
+
+    private static final class Timer {
+
+        private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+        private final AtomicLong count = new AtomicLong();
+        private final AtomicLong total = new AtomicLong();
+        private final AtomicLong max = new AtomicLong();
+
+        void record(long nanos) {
+            buckets.incrementAndGet(BUCKETS - Long.numberOfLeadingZeros(Math.max(0, nanos)));
+            count.incrementAndGet();
+            total.addAndGet(nanos);
+            max.accumulateAndGet(nanos, Math::max);
+        }
+    }
+
+    private volatile boolean enabled;
+    private final Map<Operation, Timer> timers = new EnumMap<>(Operation.class);
+    private final Map<Cache, AtomicLong> hits = new EnumMap<>(Cache.class);
+    private final Map<Cache, AtomicLong> misses = new EnumMap<>(Cache.class);
+    private final Map<Counter, AtomicLong> counters = new EnumMap<>(Counter.class);
+
+    Metrics(boolean enabled) {
+        this.enabled = enabled;
+        for (Operation operation : Operation.values()) {
+            timers.put(operation, new Timer());
+        }
+        for (Cache cache : Cache.values()) {
+            hits.put(cache, new AtomicLong());
+            misses.put(cache, new AtomicLong());
+        }
+        for (Counter counter : Counter.values()) {
+            counters.put(counter, new AtomicLong());
+        }
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    void setEnabled(boolean enabled) {
+        this.enabled = enabled;
+    }
+
+    /**
+     * Starts timing an operation.
+     * @return The start time to pass to {@link #stop}, or 0 if disabled.
+     */
+    long start() {
+        return enabled ? System.nanoTime() : 0;
+    }
+
+    /**
+     * Records the duration of an operation.
+     * @param operation The operation.
+     * @param start The result of {@link #start()}.
+     */
+    void stop(Operation operation, long start) {
+        if (start != 0) {
+            timers.get(operation).record(System.nanoTime() - start);
+        }
+    }
+
+    void hit(Cache cache) {
+        if (enabled) {
+            hits.get(cache).incrementAndGet();
+        }
+    }
+
+    void miss(Cache cache) {
+        if (enabled) {
+            misses.get(cache).incrementAndGet();
+        }
+    }
+
+    void increment(Counter counter) {
+        counters.get(counter).incrementAndGet();
+    }
+
+    /**
+     * @param operation The operation.
+     * @return How often it was timed.
+     */
+    public long getCount(Operation operation) {
+        return timers.get(operation).count.get();
+    }
+
+    /**
+     * @param operation The operation.
+     * @return The time spent in it in nanoseconds.
+     */
+    public long getTotalTime(Operation operation) {
+        return timers.get(operation).total.get();
+    }
+
+    /**
+     * @param operation The operation.
+     * @return The longest time it took in nanoseconds.
+     */
+    public long getMaxTime(Operation operation) {
+        return timers.get(operation).max.get();
+    }
+
+    /**
+     * Estimates a percentile of the time an operation took. Durations are kept in buckets which double in size, so
+     * the result is the upper bound of the bucket the percentile falls into, but never more than the maximum.
+     * @param operation The operation.
+     * @param percentile The percentile, between 0 and 100.
+     * @return The time in nanoseconds, or 0 if it was never timed.
+     */
+    public long getPercentile(Operation operation, double percentile) {
+        Timer timer = timers.get(operation);
+        long count = 0;
+        long[] buckets = new long[BUCKETS];
+        for (int i = 0; i < BUCKETS; i++) {
+            buckets[i] = timer.buckets.get(i);
+            count += buckets[i];
+        }
+        long rank = (long) Math.ceil(count * Math.min(100, Math.max(0, percentile)) / 100);
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += buckets[i];
+            if (seen >= Math.max(1, rank) && buckets[i] > 0) {
+                return Math.min((1L << i) - 1, timer.max.get());
+            }
+        }
+        return 0;
+    }
+
+    public long getHits(Cache cache) {
+        return hits.get(cache).get();
+    }
+
+    public long getMisses(Cache cache) {
+        return misses.get(cache).get();
+    }
+
+    /**
+     * @param cache The cache.
+     * @return The share of lookups which were hits between 0 and 1, or NaN if there were none.
+     */
+    public double getHitRate(Cache cache) {
+        long hits = getHits(cache);
+        long total = hits + getMisses(cache);
+        return total == 0 ? Double.NaN : (double) hits / total;
+    }
+
+    public long getCount(Counter counter) {
+        return counters.get(counter).get();
+    }
+
+    /**
+     * Forgets everything recorded so far.
+     */
+    public void reset() {
+        for (Timer timer : timers.values()) {
+            for (int i = 0; i < BUCKETS; i++) {
+                timer.buckets.set(i, 0);
+            }
+            timer.count.set(0);
+            timer.total.set(0);
+            timer.max.set(0);
+        }
+        for (Cache cache : Cache.values()) {
+            hits.get(cache).set(0);
+            misses.get(cache).set(0);
+        }
+        for (AtomicLong counter : counters.values()) {
+            counter.set(0);
+        }
+    }
+}
@@ -0,0 +1,98 @@
+package ru.gtncraft.permissions;
+
+import org.bukkit.configuration.ConfigurationSection;
+
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.NavigableSet;
+import java.util.TreeSet;
+
+/**
+ * A case-insensitive index of every configuration section by its full path.
+ */
+final class NodeIndex {
+
+    private final Map<String, ConfigurationSection> nodes = new HashMap<>();
+    // the same keys in sorted order, so a whole subtree can be dropped at once
+    private final NavigableSet<String> paths = new TreeSet<>();
+
+    static String key(String path) {
+        return path.toLowerCase(Locale.ROOT);
+    }
+
+    void rebuild(ConfigurationSection root) {
+        nodes.clear();
+        paths.clear();
+        addChildren(root, "");
+    }
+
+    ConfigurationSection get(String path) {
+        return nodes.get(key(path));
+    }
+
+    /**
+     * Indexes a section and everything below it.
+     * @param section The section.
+     * @param path The full path of the section.
+     */
+    void add(ConfigurationSection section, String path) {
+        String key = key(path);
+        // like a scan of getKeys(true), the first of several equal paths wins
+        if (nodes.putIfAbsent(key, section) == null) {
+            paths.add(key);
+        }
+        addChildren(section, path + "/");
+    }
+
+    /**
+     * Removes a path and everything below it from the index.
+     * @param path The full path.
+     */
+    void remove(String path) {
+        String key = key(path);
+        nodes.remove(key);
+        paths.remove(key);
+        // '0' is the character right after the path separator
+        NavigableSet<String> children = paths.subSet(key + "/", true, key + "0", false);
+        for (String child : children) {
+            nodes.remove(child);
+        }
+        children.clear();
+    }
+
+    /**
+     * Re-reads a path from the configuration after it was changed outside of the index.
+     * @param root The configuration root.
+     * @param path The full path.
+     */
+    void refresh(ConfigurationSection root, String path) {
+        remove(path);
+        int split = path.lastIndexOf('/');
+        ConfigurationSection parent = split < 0 ? root : get(path.substring(0, split));
+        if (parent == null) {
+            return;
+        }
+        String name = path.substring(split + 1);
+        ConfigurationSection section = parent.getConfigurationSection(name);
+        if (section == null) {
+            for (String key : parent.getKeys(false)) {
+                if (key.equalsIgnoreCase(name) && parent.isConfigurationSection(key)) {
+                    section = parent.getConfigurationSection(key);
+                    break;
+                }
+            }
+        }
+        if (section != null) {
+            add(section, path);
+        }
+    }
+
+    private void addChildren(ConfigurationSection section, String prefix) {
+        for (String key : section.getKeys(false)) {
+            if (section.isConfigurationSection(key)) {
+                add(section.getConfigurationSection(key), prefix + key);
+            }
+        }
+    }
+}
@@ -1,8 +1,5 @@
 package ru.gtncraft.permissions;
 
-import com.google.common.collect.ImmutableSet;
-import org.bukkit.configuration.ConfigurationSection;
-
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
@@ -10,17 +7,17 @@ import java.util.Set;
 
 /**
  * A class representing the global and world nodes attached to a player or group.
+ *
+ * The info is a snapshot: it does not change when the configuration does.
  */
 public final class PermissionInfo {
     
     private final PermissionManager manager;
-    private final ConfigurationSection node;
-    private final String groupType;
+    private final Snapshot.Entry node;
     
-    PermissionInfo(PermissionManager manager, ConfigurationSection node, String groupType) {
+    PermissionInfo(PermissionManager manager, Snapshot.Entry node) {
         this.manager = manager;
         this.node = node;
-        this.groupType = groupType;
     }
     /**
      * Gets the list of groups this group/player inherits permissions from.
@@ -28,7 +25,7 @@ public final class PermissionInfo {
      */
     public List<Group> getGroups() {
         List<Group> result = new ArrayList<>();
-        for (String name : node.getStringList(groupType)) {
+        for (String name : node.groups) {
             Group group = manager.getGroup(name);
             if (group != null) {
                 result.add(group);
@@ -41,18 +38,14 @@ public final class PermissionInfo {
      * @return The map of permissions.
      */
     public Map<String, Boolean> getPermissions() {
-        return manager.getAllPerms(node.getName(), node.getCurrentPath());
+        return node.permissions;
     }
     /**
      * Gets a list of worlds this group/player defines world-specific permissions for.
-     * @return The list of worlds.
+     * @return The list of worlds, in lower case.
      */
     public Set<String> getWorlds() {
-        ConfigurationSection worlds = node.getConfigurationSection("worlds");
-        if (worlds == null) {
-            return ImmutableSet.of();
-        }
-        return worlds.getKeys(false);
+        return node.worlds.keySet();
     }
     /**
      * Gets a map of world-specific permission nodes to boolean values that this group/player defines.
@@ -60,6 +53,6 @@ public final class PermissionInfo {
      * @return The map of permissions.
      */
     public Map<String, Boolean> getWorldPermissions(String world) {
-        return manager.getAllPerms(node.getName() + ":" + world, node.getName() + "/world/" + world);
+        return node.getWorldPermissions(world);
     }
 }
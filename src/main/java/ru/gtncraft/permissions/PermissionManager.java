@@ -1,45 +1,362 @@
 package ru.gtncraft.permissions;
 
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
 import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import org.bukkit.Bukkit;
+import org.bukkit.ChatColor;
+import org.bukkit.World;
 import org.bukkit.configuration.ConfigurationSection;
 import org.bukkit.entity.Player;
 import org.bukkit.permissions.PermissionAttachment;
+import org.bukkit.plugin.Plugin;
 
 import java.lang.reflect.Field;
 import java.util.*;
+import java.util.concurrent.*;
+import java.util.logging.Level;
 import java.util.stream.Collectors;
 
+/**
+ * Resolves and applies permissions.
+ *
+ * The configuration and its index are only touched on the main thread. Everything other threads can see is read from
+ * a {@link Snapshot} published through a single volatile field: a reload or a change to a group builds a new snapshot
+ * and swaps it in, a change to a user replaces that one immutable user entry. The public read methods only use the
+ * snapshot, so they can be called from any thread without locking.
+ *
+ * The exception are users kept in users.db who aren't loaded: looking one of them up by name or UUID reads the
+ * database, and waits for the import or write holding it, unless they were looked up recently. Plugins asking for
+ * offline players on the main thread should expect that.
+ */
 final public class PermissionManager {
 
-    private final Permissions plugin;
-    private final Map<UUID, PermissionAttachment> permissions = new HashMap<>();
+    private final Plugin plugin;
+    private final Map<UUID, PermissionAttachment> permissions = new ConcurrentHashMap<>();
+    private final NodeIndex index = new NodeIndex();
+    // written on the main thread only, version is bumped after every change to the snapshot which
+    // can change resolved permissions
+    private volatile Snapshot snapshot;
+    private volatile long version;
+    private volatile String defaultWorld;
+    private volatile String format;
+    // permissions resolved ahead of the join, see preparePlayer
+    private final ExecutorService resolver;
+    private final Map<UUID, Future<Prepared>> prepared = new ConcurrentHashMap<>();
+    // the resolved layers of online players, so a world change only has to merge them again
+    private final Map<UUID, PlayerLayers> layers = new ConcurrentHashMap<>();
+    // the chat format of online players, so chat threads don't have to resolve prefixes
+    private final Map<UUID, String> formats = new ConcurrentHashMap<>();
+    private final Metrics metrics;
+    // where users are kept, replaced when they are migrated
+    private volatile Storage storage;
+    // with a lazy storage: the lower-cased keys of offline users loaded into the configuration, least recently used
+    // first, and offline users read without loading them; both hold at most cacheSize users, online players are
+    // always loaded
+    private final int cacheSize;
+    private final LinkedHashMap<String, String> loadedOffline = new LinkedHashMap<>(16, 0.75f, true);
+    private final Cache<String, Optional<Snapshot.Entry>> offline;
+    // changes to config.yml are recorded here if not null
+    private final Journal journal;
+    // what the last reload changed, until applyReload recalculates the players affected by it
+    private Changes pending;
+    // other servers are told about changes through this if not null, main thread only
+    private Sync sync;
+    // temporary entries, queued as users and groups are read
+    private final Expiries expiries = new Expiries(this);
+    // players affected by a change to many of them, recalculated over the next ticks
+    private final Recalculations recalculations;
 
-    public PermissionManager(final Permissions plugin) {
+    public PermissionManager(final Plugin plugin) {
+        this(plugin, new Metrics(false));
+    }
+
+    public PermissionManager(final Plugin plugin, final Metrics metrics) {
+        this(plugin, metrics, new YamlStorage(plugin));
+    }
+
+    PermissionManager(final Plugin plugin, final Metrics metrics, final Storage storage) {
+        this(plugin, metrics, storage, null);
+    }
+
+    PermissionManager(final Plugin plugin, final Metrics metrics, final Storage storage, final Journal journal) {
         this.plugin = plugin;
+        this.metrics = metrics;
+        this.storage = storage;
+        this.journal = journal;
+        cacheSize = Math.max(0, plugin.getConfig().getInt("user-cache-size", 1000));
+        offline = CacheBuilder.newBuilder().maximumSize(cacheSize).build();
+        recalculations = new Recalculations(this,
+                (long) (Math.max(0, plugin.getConfig().getDouble("recalculate-budget", 5)) * 1000000));
+        if (plugin.getConfig().getBoolean("async-resolve", false)) {
+            resolver = Executors.newFixedThreadPool(Math.max(1, plugin.getConfig().getInt("resolve-threads", 2)),
+                    new ThreadFactoryBuilder().setNameFormat("Permissions Resolver #%d").setDaemon(true).build());
+        } else {
+            resolver = null;
+        }
+        reload();
     }
 
-    // -- External API
     /**
-     * Get the group with the given name.
+     * Rebuilds everything derived from the configuration, called after it was (re)loaded. What was resolved for
+     * groups which didn't change is kept, the players affected by the changes are queued by
+     * {@link #applyReload()}.
+     */
+    void reload() {
+        if (storage.isLazy() && plugin.getConfig().getConfigurationSection("users") != null) {
+            plugin.getLogger().warning("Ignoring the users in config.yml, users are kept in users.db.");
+            plugin.getConfig().set("users", null);
+        }
+        index.rebuild(plugin.getConfig());
+        expiries.clear();
+        loadedOffline.clear();
+        offline.invalidateAll();
+        if (storage.isLazy()) {
+            // only online players are loaded, the tree was just replaced
+            for (UUID uuid : permissions.keySet()) {
+                Player player = Bukkit.getServer().getPlayer(uuid);
+                if (loadUser(uuid.toString(), null) == null && player != null) {
+                    loadUser(player.getName(), null);
+                }
+            }
+        }
+        Map<String, Snapshot.Entry> groups = readGroups();
+        Users users = new Users();
+        ConfigurationSection node = getNode("users");
+        if (node != null) {
+            for (String key : node.getKeys(false)) {
+                if (node.isConfigurationSection(key)) {
+                    // like getNode, the first of several keys differing in case wins
+                    users.add(readUser(node.getConfigurationSection(key)));
+                }
+            }
+        }
+        GroupGraph graph = buildGraph(groups);
+        String nextFormat = ChatColor.translateAlternateColorCodes('&', plugin.getConfig().getString("format", "%name: %message"))
+                                     .replace("%name", "%1$s")
+                                     .replace("%message", "%2$s");
+        Snapshot old = snapshot;
+        if (old == null) {
+            snapshot = new Snapshot(groups, graph, users, metrics);
+        } else {
+            Changes changes = new Changes(old, groups, graph, users);
+            changes.format = !nextFormat.equals(format);
+            // what an earlier reload changed wasn't applied (it failed), so the players may be out of date with anything
+            changes.everyone = pending != null;
+            snapshot = old.withGroups(groups, graph, changes.getInvalidated()).withUsers(users);
+            pending = changes;
+        }
+        version++;
+        List<World> worlds = Bukkit.getWorlds();
+        defaultWorld = worlds.isEmpty() ? null : worlds.get(0).getName();
+        format = nextFormat;
+    }
+
+    /**
+     * Queues the online players whose permissions can have changed with the last reload to be recalculated, and
+     * updates the chat format of everyone else if needed.
      *
-     * @param groupName The name of the group.
-     * @return A Group if it exists or null otherwise.
+     * @return What the reload changed.
      */
-    public Group getGroup(String groupName) {
+    public ReloadSummary applyReload() {
+        Changes changes = pending;
+        pending = null;
+        if (changes == null) {
+            // nothing to compare against, so everyone may have changed
+            refreshPermissions();
+            return new ReloadSummary(ImmutableSet.of(), ImmutableSet.of(), ImmutableSet.of(), 0, false, permissions.size());
+        }
+
+        Snapshot data = snapshot;
+        // a group which was added or removed can be someone's first group as well
+        boolean rebuildFormats = changes.format || !changes.prefixes.isEmpty() || !changes.groups.isEmpty();
+        int queued = 0;
+        for (UUID uuid : permissions.keySet()) {
+            Player player = Bukkit.getServer().getPlayer(uuid);
+            if (player == null) {
+                continue;
+            }
+            if (changes.affects(player, data.getUser(uuid, player.getName()))) {
+                recalculations.add(player);
+                queued++;
+                continue;
+            }
+            keepLayers(player, changes.before, data);
+            if (rebuildFormats) {
+                formats.put(uuid, buildChatFormat(data, player));
+            }
+        }
+        return new ReloadSummary(changes.groups, changes.prefixes, changes.worlds.keySet(), changes.users.size(),
+                changes.format, queued);
+    }
+
+    /**
+     * Stops resolving permissions in the background and closes the storage.
+     */
+    void close() {
+        if (resolver != null) {
+            resolver.shutdownNow();
+        }
+        prepared.clear();
+        storage.close();
+    }
+
+    Storage getStorage() {
+        return storage;
+    }
+
+    /**
+     * Replaces the storage, the configuration has to be reloaded afterwards. The old storage isn't closed.
+     * @param storage The new storage.
+     */
+    void setStorage(Storage storage) {
+        this.storage = storage;
+    }
+
+    /**
+     * @return What removes temporary entries, run it every tick.
+     */
+    Expiries getExpiries() {
+        return expiries;
+    }
+
+    void setSync(Sync sync) {
+        this.sync = sync;
+    }
+
+    private void publish(Sync.Kind kind, String key, ConfigurationSection node) {
+        if (sync != null) {
+            sync.changed(kind, key, node);
+        }
+    }
+
+    Map<String, Snapshot.Entry> readGroups() {
+        Map<String, Snapshot.Entry> result = new LinkedHashMap<>();
         ConfigurationSection groups = getNode("groups");
         if (groups != null) {
             for (String key : groups.getKeys(false)) {
-                if (key.equalsIgnoreCase(groupName)) {
-                    return new Group(this, key);
+                if (groups.isConfigurationSection(key) && !result.containsKey(NodeIndex.key(key))) {
+                    result.put(NodeIndex.key(key), readEntry(groups.getConfigurationSection(key), "group " + key, "inheritance"));
+                }
+            }
+        }
+        return result;
+    }
+
+    Snapshot.Entry readUser(ConfigurationSection node) {
+        return readEntry(node, "user " + node.getName(), "groups");
+    }
+
+    Snapshot.Entry readEntry(ConfigurationSection node, String desc, String list) {
+        String path = node.getCurrentPath();
+        expiries.schedule(node);
+        Map<String, Boolean> perms = ImmutableMap.of();
+        if (getNode(path + "/permissions") != null) {
+            perms = getAllPerms(desc, path + "/permissions");
+        }
+        Map<String, Map<String, Boolean>> worlds = new HashMap<>();
+        ConfigurationSection sec = getNode(path + "/worlds");
+        if (sec != null) {
+            for (String world : sec.getKeys(false)) {
+                if (sec.isConfigurationSection(world) && !worlds.containsKey(NodeIndex.key(world))) {
+                    worlds.put(NodeIndex.key(world), getAllPerms(desc + " world " + world, path + "/worlds/" + world));
+                }
+            }
+        }
+        return new Snapshot.Entry(node.getName(), node.getString("name"), node.getString("prefix", node.getName()),
+                node.getStringList(list), perms, worlds);
+    }
+
+    /**
+     * Reads a user which isn't in the configuration, without fixing or reporting problems in it.
+     * @param key The key of the user.
+     * @param node The user.
+     * @return The user.
+     */
+    static Snapshot.Entry parseUser(String key, ConfigurationSection node) {
+        Map<String, Map<String, Boolean>> worlds = new HashMap<>();
+        ConfigurationSection sec = node.getConfigurationSection("worlds");
+        if (sec != null) {
+            for (String world : sec.getKeys(false)) {
+                if (sec.isConfigurationSection(world)) {
+                    worlds.putIfAbsent(NodeIndex.key(world), parsePerms(sec.getConfigurationSection(world)));
+                }
+            }
+        }
+        return new Snapshot.Entry(key, node.getString("name"), node.getString("prefix", key),
+                node.getStringList("groups"), parsePerms(node.getConfigurationSection("permissions")), worlds);
+    }
+
+    private static Map<String, Boolean> parsePerms(ConfigurationSection node) {
+        Map<String, Boolean> result = new LinkedHashMap<>();
+        if (node != null) {
+            for (String key : node.getKeys(false)) {
+                if (node.isBoolean(key)) {
+                    result.put(SymbolTable.NODES.intern(key), node.getBoolean(key));
                 }
             }
         }
+        return result;
+    }
+
+    // a user who isn't loaded is read from the storage, without loading them; the caller passes the snapshot it
+    // reads the groups from, so both belong to the same one
+    private Snapshot.Entry findUser(Snapshot data, String key) {
+        Snapshot.Entry entry = data.getUser(key);
+        Storage current = storage;
+        if (entry != null || !current.isLazy()) {
+            return entry;
+        }
+        Optional<Snapshot.Entry> cached = offline.getIfPresent(NodeIndex.key(key));
+        if (cached != null) {
+            metrics.hit(Metrics.Cache.OFFLINE);
+            return cached.orElse(null);
+        }
+        metrics.miss(Metrics.Cache.OFFLINE);
+        ConfigurationSection stored = current.read(key);
+        entry = stored != null ? parseUser(key, stored) : null;
+        offline.put(NodeIndex.key(key), Optional.ofNullable(entry));
+        return entry;
+    }
+
+    private Snapshot.Entry findUserByName(Snapshot data, String name) {
+        Snapshot.Entry entry = data.getUserByName(name);
+        Storage current = storage;
+        if (entry == null && current.isLazy()) {
+            String key = current.findKey(name);
+            entry = key != null ? findUser(data, key) : null;
+        }
+        return entry;
+    }
+
+    GroupGraph buildGraph(Map<String, Snapshot.Entry> groups) {
+        Map<String, List<String>> inheritance = new LinkedHashMap<>();
+        for (Snapshot.Entry group : groups.values()) {
+            inheritance.put(group.key, group.groups);
+        }
+        return new GroupGraph(inheritance, plugin.getLogger());
+    }
+
+    // -- External API
+    /**
+     * Get the group with the given name.
+     *
+     * @param groupName The name of the group.
+     * @return A Group if it exists or null otherwise.
+     */
+    public Group getGroup(String groupName) {
+        Snapshot.Entry entry = snapshot.getGroup(groupName);
+        if (entry != null) {
+            return new Group(this, entry.key, entry.prefix);
+        }
         return null;
     }
 
     /**
-     * Returns a list of groups a player is in.
+     * Returns a list of groups a player is in. May block on users.db if the player isn't loaded.
      *
      * @param player The name of the player.
      * @return The groups this player is in. May be empty.
@@ -48,58 +365,289 @@ final public class PermissionManager {
     @Deprecated
     @SuppressWarnings("unused")
     public List<Group> getGroups(String player) {
+        Snapshot data = snapshot;
         List<Group> result = new ArrayList<>();
-        ConfigurationSection node = getUsernameNode(player);
+        Snapshot.Entry node = findUserByName(data, player);
         if (node == null) {
-            result.add(new Group(this, "default"));
+            result.add(createGroup(data, "default"));
         } else {
-            for (String key : node.getStringList("groups")) {
-                result.add(new Group(this, key));
+            for (String key : node.groups) {
+                result.add(createGroup(data, key));
             }
         }
         return result;
     }
 
+    Group createGroup(Snapshot data, String name) {
+        Snapshot.Entry entry = data.getGroup(name);
+        return new Group(this, name, entry != null ? entry.prefix : name);
+    }
+
     /**
-     * Returns permission info on the given player.
+     * Returns permission info on the given player. May block on users.db if the player isn't loaded.
      *
      * @param player The name of the player.
      * @return A PermissionsInfo about this player.
      */
     @SuppressWarnings("unused")
     public PermissionInfo getPlayerInfo(String player) {
-        ConfigurationSection node = getNode("users/" + player);
+        Snapshot.Entry node = findUser(snapshot, player);
         if (node != null) {
-            return new PermissionInfo(plugin.getManager(), node, "groups");
+            return new PermissionInfo(this, node);
         }
         return null;
     }
+    /**
+     * Returns the UUID of a player by the name last seen for them. May block on users.db if the player isn't loaded.
+     *
+     * @param name The name of the player.
+     * @return The UUID, or null if the player isn't in the configuration or wasn't converted to a UUID yet.
+     */
+    @SuppressWarnings("unused")
+    public UUID getUniqueId(String name) {
+        Snapshot.Entry node = findUserByName(snapshot, name);
+        if (node != null) {
+            try {
+                return UUID.fromString(node.key);
+            } catch (IllegalArgumentException ignore) {
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Returns the name last seen for a player. May block on users.db if the player isn't loaded.
+     *
+     * @param uuid The UUID of the player.
+     * @return The name, or null if the player isn't in the configuration.
+     */
+    @SuppressWarnings("unused")
+    public String getName(UUID uuid) {
+        Snapshot.Entry node = findUser(snapshot, uuid.toString());
+        return node != null ? node.name : null;
+    }
+
     /**
      * Returns a list of all defined groups.
      * @return The list of groups.
      */
     @SuppressWarnings("unused")
     public Collection<Group> getAllGroups() {
-        ConfigurationSection node = getNode("groups");
-        if (node == null) {
-            return ImmutableList.of(new Group(plugin.getManager(), "default"));
+        Collection<Snapshot.Entry> groups = snapshot.getGroups();
+        if (groups.isEmpty()) {
+            return ImmutableList.of(new Group(this, "default", "default"));
+        }
+        return groups.stream()
+                     .map(entry -> new Group(this, entry.key, entry.prefix))
+                     .collect(Collectors.toList());
+    }
+
+    /**
+     * Checks a permission of a group as resolved from the configuration, including everything it inherits.
+     * Wildcards such as {@code essentials.*} are understood, children of permissions defined by plugins aren't.
+     * Can be called from any thread.
+     *
+     * @param group The name of the group.
+     * @param world The world.
+     * @param permission The permission node.
+     * @return The value, or null if neither the node nor a wildcard covering it is set.
+     */
+    @SuppressWarnings("unused")
+    public Boolean getGroupPermission(String group, String world, String permission) {
+        return snapshot.getGroupTrie(group, world).get(permission);
+    }
+
+    /**
+     * Checks a permission of a player in their current world as resolved from the configuration, like
+     * {@link #getGroupPermission(String, String, String)}. Can be called from any thread.
+     *
+     * @param player The player.
+     * @param permission The permission node.
+     * @return The value, or null if neither the node nor a wildcard covering it is set.
+     */
+    @SuppressWarnings("unused")
+    public Boolean getPlayerPermission(Player player, String permission) {
+        Snapshot data = snapshot;
+        Snapshot.Entry user = data.getUser(player.getUniqueId(), player.getName());
+        PlayerLayers cached = layers.get(player.getUniqueId());
+        if (cached == null || cached.snapshot != data || cached.user != user) {
+            // not registered or out of date, don't replace what the main thread keeps up to date
+            cached = new PlayerLayers(data, user);
+        }
+        return cached.getTrie(player.getWorld().getName()).get(permission);
+    }
+
+    /**
+     * Returns how often a player's permissions were recalculated but nothing changed, so the (expensive)
+     * recalculation by the server was skipped.
+     *
+     * @return The number of skipped recalculations.
+     */
+    @SuppressWarnings("unused")
+    public long getSkippedRecalculations() {
+        return metrics.getCount(Metrics.Counter.SKIPPED_RECALCULATIONS);
+    }
+
+    /**
+     * Returns how often only the end of a player's permissions changed and just that part was replaced.
+     *
+     * @return The number of partial recalculations.
+     */
+    @SuppressWarnings("unused")
+    public long getPartialRecalculations() {
+        return metrics.getCount(Metrics.Counter.PARTIAL_RECALCULATIONS);
+    }
+
+    /**
+     * Returns how often a player's permissions were replaced entirely.
+     *
+     * @return The number of full recalculations.
+     */
+    @SuppressWarnings("unused")
+    public long getFullRecalculations() {
+        return metrics.getCount(Metrics.Counter.FULL_RECALCULATIONS);
+    }
+
+    /**
+     * Returns how many players are waiting to be recalculated after a change which affected many of them.
+     *
+     * @return The number of queued players.
+     */
+    @SuppressWarnings("unused")
+    public int getQueuedRecalculations() {
+        return recalculations.size();
+    }
+
+    /**
+     * Returns the timings and cache statistics of the plugin. Can be read from any thread.
+     *
+     * @return The metrics, the same object for as long as the plugin is enabled.
+     */
+    public Metrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * Estimates the memory kept by the resolved permissions of groups and online players. Can be called from any
+     * thread.
+     *
+     * @return The estimates.
+     */
+    public MemoryUsage getMemoryUsage() {
+        // only what is cached counts, everything shared once
+        Set<Object> seen = Collections.newSetFromMap(new IdentityHashMap<>());
+        long size = snapshot.estimateResolvedSize(seen);
+        for (PlayerLayers cached : layers.values()) {
+            size += cached.estimateSize(seen);
+        }
+        Runtime runtime = Runtime.getRuntime();
+        return new MemoryUsage(SymbolTable.NODES.size(), permissions.size(), seen.size(), size,
+                runtime.totalMemory() - runtime.freeMemory(), runtime.maxMemory());
+    }
+
+    /**
+     * Starts resolving the permissions of a player who is about to join on a background thread, if enabled. Can be
+     * called from any thread.
+     *
+     * @param uuid The UUID of the player.
+     * @param name The name of the player.
+     */
+    public void preparePlayer(final UUID uuid, final String name) {
+        String world = defaultWorld;
+        if (resolver == null || world == null) {
+            return;
+        }
+        // read the version first, a newer snapshot than that only makes the result be thrown away
+        long current = version;
+        Snapshot data = snapshot;
+        Storage users = storage;
+        try {
+            prepared.put(uuid, resolver.submit(() -> {
+                Snapshot.Entry user = data.getUser(uuid, name);
+                if (user != null || !users.isLazy()) {
+                    return new Prepared(current, world, data.getPlayerPermissions(user, world), null, null);
+                }
+                // read the user while we're at it, so the join doesn't have to
+                String key = uuid.toString();
+                ConfigurationSection stored = users.read(key);
+                if (stored == null) {
+                    key = name;
+                    stored = users.read(key);
+                }
+                user = stored != null ? parseUser(key, stored) : null;
+                return new Prepared(current, world, data.getPlayerPermissions(user, world), key, stored);
+            }));
+        } catch (RejectedExecutionException ignore) {
+        }
+    }
+
+    /**
+     * Forgets about permissions resolved for a player who didn't join after all.
+     *
+     * @param uuid The UUID of the player.
+     */
+    public void discardPrepared(final UUID uuid) {
+        Future<Prepared> future = prepared.remove(uuid);
+        if (future != null) {
+            future.cancel(false);
         }
-        return node.getKeys(false)
-                   .stream()
-                   .map(name -> new Group(plugin.getManager(), name))
-                   .collect(Collectors.toList());
     }
 
     public void registerPlayer(final Player player) {
+        long start = metrics.start();
+        Future<Prepared> future = prepared.remove(player.getUniqueId());
         if (permissions.containsKey(player.getUniqueId())) {
             unregisterPlayer(player);
         }
+
+        // use the permissions resolved before the join if nothing changed since then,
+        // otherwise (or if they aren't ready yet) resolve them right here
+        String world = player.getWorld().getName();
+        Map<String, Boolean> values = null;
+        if (future != null && future.isDone() && !future.isCancelled()) {
+            try {
+                Prepared result = future.get();
+                if (result.version == version) {
+                    if (result.stored != null && index.get("users/" + result.key) == null) {
+                        snapshot.putUser(readUser(loadUser(result.key, result.stored)));
+                    }
+                    if (result.world.equals(world)) {
+                        values = result.permissions;
+                    }
+                }
+            } catch (InterruptedException | ExecutionException ex) {
+                plugin.getLogger().log(Level.WARNING, "Failed to resolve permissions of " + player.getName(), ex);
+            }
+        } else if (future != null) {
+            future.cancel(false);
+        }
+        // converts the user to a UUID node and keeps the name up to date
+        getUserNode(player);
         PermissionAttachment attachment = player.addAttachment(plugin);
         permissions.put(player.getUniqueId(), attachment);
-        calculateAttachment(player);
+        if (resolver != null) {
+            if (values != null) {
+                metrics.hit(Metrics.Cache.PREPARED);
+            } else {
+                metrics.miss(Metrics.Cache.PREPARED);
+            }
+        }
+        if (values == null) {
+            values = calculatePlayerPermissions(player, world);
+        }
+        applyAttachment(player, attachment, values);
+        formats.put(player.getUniqueId(), buildChatFormat(snapshot, player));
+        // online players stay loaded
+        loadedOffline.remove(NodeIndex.key(player.getUniqueId().toString()));
+        trimOffline();
+        metrics.stop(Metrics.Operation.JOIN, start);
     }
 
     public void unregisterPlayer(final Player player) {
+        discardPrepared(player.getUniqueId());
+        recalculations.remove(player.getUniqueId());
+        layers.remove(player.getUniqueId());
+        formats.remove(player.getUniqueId());
         if (permissions.containsKey(player.getUniqueId())) {
             try {
                 player.removeAttachment(permissions.get(player.getUniqueId()));
@@ -107,79 +655,323 @@ final public class PermissionManager {
             }
             permissions.remove(player.getUniqueId());
         }
+        if (storage.isLazy() && index.get("users/" + player.getUniqueId()) != null) {
+            loadedOffline.put(NodeIndex.key(player.getUniqueId().toString()), player.getUniqueId().toString());
+            trimOffline();
+        }
     }
 
     public void refreshForPlayer(final UUID uuid) {
-        plugin.saveConfig();
+        long start = metrics.start();
+        String path = "users/" + uuid;
+        boolean loaded = index.get(path) != null;
+        index.refresh(plugin.getConfig(), path);
+        ConfigurationSection node = index.get(path);
+        if (node == null && !loaded) {
+            // a user who isn't loaded wasn't changed in the configuration either
+            node = getNode(path);
+        } else {
+            saveUser(uuid.toString(), node);
+            publish(Sync.Kind.USER, uuid.toString(), node);
+        }
+        if (node != null) {
+            snapshot.putUser(readUser(node));
+        } else {
+            snapshot.removeUser(uuid.toString());
+        }
+        version++;
         Player onlinePlayer = Bukkit.getServer().getPlayer(uuid);
         if (onlinePlayer != null) {
             calculateAttachment(onlinePlayer);
         }
+        trimOffline();
+        metrics.stop(Metrics.Operation.REFRESH_PLAYER, start);
     }
 
-    void fillChildGroups(Set<String> childGroups, String group) {
-        if (childGroups.contains(group)) {
-            return;
-        }
-        childGroups.add(group);
+    public void refreshForGroup(String group) {
+        long start = metrics.start();
+        index.refresh(plugin.getConfig(), "groups/" + group);
+        ConfigurationSection changed = index.get("groups/" + group);
+        saveConfig(changed != null ? changed.getCurrentPath() : "groups/" + group);
+        publish(Sync.Kind.GROUP, changed != null ? changed.getName() : group, changed);
+
+        // build the set of groups which are children of "group"
+        // e.g. if Bob is only a member of "expert" which inherits "user", he
+        // must be updated if the permissions of "user" change
+        // the inheritance itself may have changed, so take the children from before and after
+        Set<String> childGroups = new HashSet<>(snapshot.graph.getDescendants(group));
+        Map<String, Snapshot.Entry> groups = readGroups();
+        GroupGraph graph = buildGraph(groups);
+        childGroups.addAll(graph.getDescendants(group));
+        Snapshot before = snapshot;
+        snapshot = before.withGroups(groups, graph, childGroups);
+        version++;
+
+        for (UUID uuid : permissions.keySet()) {
+            Player player = Bukkit.getServer().getPlayer(uuid);
+            if (player == null) {
+                continue;
+            }
+            Snapshot.Entry node = snapshot.getUser(uuid, player.getName());
 
-        for (String key : getNode("groups").getKeys(false)) {
-            for (String parent : getNode("groups/" + key).getStringList("inheritance")) {
-                if (parent.equalsIgnoreCase(group)) {
-                    fillChildGroups(childGroups, key);
+            // if the player isn't in the config, act like they're in default
+            List<String> groupList = (node != null) ? node.groups : Arrays.asList("default");
+            boolean affected = false;
+            for (String userGroup : groupList) {
+                if (childGroups.contains(NodeIndex.key(userGroup))) {
+                    recalculations.add(player);
+                    affected = true;
+                    break;
                 }
             }
+            if (!affected) {
+                keepLayers(player, before, snapshot);
+            }
         }
+        metrics.stop(Metrics.Operation.REFRESH_GROUP, start);
     }
 
-    public void refreshForGroup(String group) {
-        plugin.saveConfig();
+    /**
+     * Starts a batch of changes to users and groups, see {@link Batch}.
+     *
+     * @return The batch, nothing changes until it is committed.
+     */
+    public Batch batch() {
+        return new Batch(this);
+    }
 
-        // build the set of groups which are children of "group"
-        // e.g. if Bob is only a member of "expert" which inherits "user", he
-        // must be updated if the permissions of "user" change
+    /**
+     * Saves what a batch changed in the configuration and recalculates every online player affected by it once.
+     * @param users The keys of the users which were changed.
+     * @param groups The names of the groups which were changed.
+     * @param paths The paths which were set or removed in them, or null to record the users and groups as a whole.
+     */
+    void commit(Collection<String> users, Collection<String> groups, Collection<String> paths) {
+        long start = metrics.start();
+        ConfigurationSection root = plugin.getConfig();
+        boolean lazy = storage.isLazy();
+        Set<String> changedUsers = new HashSet<>();
+        for (String key : users) {
+            String path = "users/" + key;
+            index.refresh(root, path);
+            ConfigurationSection node = index.get(path);
+            if (lazy) {
+                saveUser(key, node);
+                UUID uuid = uuid(key);
+                if (node != null && (uuid == null || !permissions.containsKey(uuid))) {
+                    loadedOffline.put(NodeIndex.key(key), node.getName());
+                }
+            } else if (journal != null && paths == null) {
+                journal.set(root, node != null ? node.getCurrentPath() : path);
+            }
+            publish(Sync.Kind.USER, key, node);
+            if (node != null) {
+                snapshot.putUser(readUser(node));
+            } else {
+                snapshot.removeUser(key);
+            }
+            changedUsers.add(NodeIndex.key(key));
+        }
+
+        // like refreshForGroup, but the groups are only read once for all of them
         Set<String> childGroups = new HashSet<>();
-        fillChildGroups(childGroups, group);
+        Snapshot before = snapshot;
+        if (!groups.isEmpty()) {
+            for (String group : groups) {
+                String path = "groups/" + group;
+                index.refresh(root, path);
+                ConfigurationSection node = index.get(path);
+                if (journal != null && paths == null) {
+                    journal.set(root, node != null ? node.getCurrentPath() : path);
+                }
+                publish(Sync.Kind.GROUP, node != null ? node.getName() : group, node);
+                childGroups.addAll(snapshot.graph.getDescendants(group));
+            }
+            Map<String, Snapshot.Entry> read = readGroups();
+            GroupGraph graph = buildGraph(read);
+            for (String group : groups) {
+                childGroups.addAll(graph.getDescendants(group));
+            }
+            snapshot = snapshot.withGroups(read, graph, childGroups);
+        }
+        if (journal != null && paths != null) {
+            for (String changed : paths) {
+                // users kept elsewhere were stored as a whole already
+                if (!lazy || !changed.regionMatches(true, 0, "users/", 0, 6)) {
+                    journal.set(root, changed);
+                }
+            }
+        }
+        if (!groups.isEmpty() || !lazy) {
+            plugin.saveConfig();
+        }
+        version++;
 
         for (UUID uuid : permissions.keySet()) {
             Player player = Bukkit.getServer().getPlayer(uuid);
-            ConfigurationSection node = getUserNode(player);
-
+            if (player == null) {
+                continue;
+            }
+            if (changedUsers.contains(NodeIndex.key(uuid.toString()))
+                    || changedUsers.contains(NodeIndex.key(player.getName()))) {
+                calculateAttachment(player);
+                continue;
+            }
+            Snapshot.Entry node = snapshot.getUser(uuid, player.getName());
+            boolean affected = false;
             // if the player isn't in the config, act like they're in default
-            List<String> groupList = (node != null) ? node.getStringList("groups") : Arrays.asList("default");
-            for (String userGroup : groupList) {
-                if (childGroups.contains(userGroup)) {
-                    calculateAttachment(player);
+            for (String group : node != null ? node.groups : Collections.singletonList("default")) {
+                if (childGroups.contains(NodeIndex.key(group))) {
+                    recalculations.add(player);
+                    affected = true;
                     break;
                 }
             }
+            if (!affected) {
+                keepLayers(player, before, snapshot);
+            }
         }
+        trimOffline();
+        metrics.stop(Metrics.Operation.COMMIT, start);
     }
 
     public void refreshPermissions() {
-        for (UUID player : permissions.keySet()) {
-            calculateAttachment(Bukkit.getServer().getPlayer(player));
+        for (UUID uuid : permissions.keySet()) {
+            Player player = Bukkit.getServer().getPlayer(uuid);
+            if (player != null) {
+                recalculations.add(player);
+            }
+        }
+    }
+
+    /**
+     * @return What recalculates the players affected by a change over the next ticks, run it every tick.
+     */
+    Recalculations getRecalculations() {
+        return recalculations;
+    }
+
+    /**
+     * Recalculates a player right away if they're waiting to be, before their permissions are checked.
+     *
+     * @param player The player.
+     */
+    void recalculateIfQueued(Player player) {
+        if (recalculations.contains(player.getUniqueId())) {
+            calculateAttachment(player);
         }
     }
 
     protected ConfigurationSection getNode(String node) {
-        for (String entry : plugin.getConfig().getKeys(true)) {
-            if (node.equalsIgnoreCase(entry) && plugin.getConfig().isConfigurationSection(entry)) {
-                return plugin.getConfig().getConfigurationSection(entry);
+        ConfigurationSection result = index.get(node);
+        if (storage.isLazy() && node.regionMatches(true, 0, "users/", 0, 6) && node.indexOf('/', 6) < 0) {
+            String key = NodeIndex.key(node.substring(6));
+            if (result == null) {
+                // a user is loaded from the storage the first time it's needed, and stays loaded
+                // until it's among the least recently used offline users at the end of an operation
+                result = loadUser(key, null);
+                if (result == null) {
+                    return null;
+                }
+                snapshot.putUser(readUser(result));
+                UUID uuid = uuid(key);
+                if (uuid == null || !permissions.containsKey(uuid)) {
+                    loadedOffline.put(key, result.getName());
+                }
+            } else {
+                loadedOffline.get(key);
             }
         }
-        return null;
+        return result;
+    }
+
+    private static UUID uuid(String key) {
+        try {
+            return UUID.fromString(key);
+        } catch (IllegalArgumentException ex) {
+            return null;
+        }
+    }
+
+    /**
+     * Unloads the least recently used offline users beyond the cache size. Only called at the end of an operation,
+     * while nobody holds on to a section of a user.
+     */
+    private void trimOffline() {
+        Iterator<Map.Entry<String, String>> it = loadedOffline.entrySet().iterator();
+        while (loadedOffline.size() > cacheSize && it.hasNext()) {
+            String key = it.next().getValue();
+            it.remove();
+            ConfigurationSection sec = index.get("users/" + key);
+            if (sec != null) {
+                index.remove("users/" + key);
+                sec.getParent().set(sec.getName(), null);
+                // doesn't change what anyone resolves to, the user is read from the storage again if needed
+                snapshot.removeUser(key);
+            }
+        }
+    }
+
+    /**
+     * Copies a user from the storage into the configuration. Loading doesn't change what anyone resolves to, so the
+     * version stays the same. Must be called on the main thread.
+     * @param key The key of the user.
+     * @param stored The user if it was already read, or null to read it.
+     * @return The user in the configuration, or null if there's no such user.
+     */
+    private ConfigurationSection loadUser(String key, ConfigurationSection stored) {
+        if (stored == null) {
+            stored = storage.read(key);
+            if (stored == null) {
+                return null;
+            }
+        }
+        ConfigurationSection sec = createNode("users").createSection(key);
+        copy(stored, sec);
+        index.add(sec, sec.getCurrentPath());
+        return sec;
+    }
+
+    private void saveUser(String key, ConfigurationSection node) {
+        offline.invalidate(NodeIndex.key(key));
+        storage.save(key, node);
+    }
+
+    // the user a changed path belongs to is stored, anything else is in config.yml
+    private void saveNode(String path) {
+        String[] parts = path.split("/", 3);
+        if (parts.length > 1 && NodeIndex.key(parts[0]).equals("users")) {
+            saveUser(parts[1], index.get("users/" + parts[1]));
+        } else {
+            saveConfig(path);
+        }
+    }
+
+    // a change to config.yml is recorded in the journal, the file is rewritten later
+    private void saveConfig(String path) {
+        if (journal != null) {
+            journal.set(plugin.getConfig(), path);
+        }
+        plugin.saveConfig();
     }
 
     protected ConfigurationSection getUserNode(Player player) {
         ConfigurationSection sec = getNode("users/" + player.getUniqueId());
         if (sec == null) {
-            sec = getNode("users/" + player.getName());
-            if (sec != null) {
-                plugin.getConfig().set(sec.getCurrentPath(), null);
-                plugin.getConfig().set("users/" + player.getUniqueId(), sec);
+            ConfigurationSection old = getNode("users/" + player.getName());
+            if (old != null) {
+                // copy rather than move the section, a moved section keeps its old path
+                sec = plugin.getConfig().createSection("users/" + player.getUniqueId());
+                copy(old, sec);
+                index.remove(old.getCurrentPath());
+                plugin.getConfig().set(old.getCurrentPath(), null);
+                index.add(sec, sec.getCurrentPath());
                 sec.set("name", player.getName());
-                plugin.saveConfig();
+                snapshot.removeUser(old.getName());
+                snapshot.putUser(readUser(sec));
+                offline.invalidate(NodeIndex.key(old.getName()));
+                offline.invalidate(NodeIndex.key(sec.getName()));
+                storage.rename(old.getName(), sec.getName(), sec);
             }
         }
 
@@ -187,41 +979,42 @@ final public class PermissionManager {
         if (sec != null) {
             if (!player.getName().equals(sec.getString("name"))) {
                 sec.set("name", player.getName());
-                plugin.saveConfig();
+                snapshot.putUser(readUser(sec));
+                offline.invalidate(NodeIndex.key(sec.getName()));
+                storage.save(sec.getName(), sec, Collections.singletonList(sec.getCurrentPath() + "/name"));
             }
         }
 
         return sec;
     }
 
-    protected ConfigurationSection getUsernameNode(String name) {
-        // try to look up node based on username rather than UUID
-        ConfigurationSection sec = getNode("users");
-        if (sec != null) {
-            for (String child : sec.getKeys(false)) {
-                ConfigurationSection node = sec.getConfigurationSection(child);
-                if (node != null && (name.equals(node.getString("name")) || name.equals("child"))) {
-                    // either the "name" field matches or the key matches
-                    return node;
-                }
-            }
-        }
-        return null;
-    }
-
     public ConfigurationSection createNode(final String node) {
         ConfigurationSection sec = plugin.getConfig();
         for (String piece : node.split("/")) {
             ConfigurationSection sec2 = getNode(sec == plugin.getConfig() ? piece : sec.getCurrentPath() + "/" + piece);
             if (sec2 == null) {
                 sec2 = sec.createSection(piece);
+                index.add(sec2, sec2.getCurrentPath());
             }
             sec = sec2;
         }
         return sec;
     }
 
+    static void copy(ConfigurationSection from, ConfigurationSection to) {
+        for (String key : from.getKeys(false)) {
+            if (from.isConfigurationSection(key)) {
+                copy(from.getConfigurationSection(key), to.createSection(key));
+            } else if (from.isList(key)) {
+                to.set(key, new ArrayList<>(from.getList(key)));
+            } else {
+                to.set(key, from.get(key));
+            }
+        }
+    }
+
     protected Map<String, Boolean> getAllPerms(String desc, String path) {
+        long start = metrics.start();
         ConfigurationSection node = getNode(path);
 
         int failures = 0;
@@ -243,15 +1036,17 @@ final public class PermissionManager {
             }
         }
         if (fixed) {
+            index.refresh(plugin.getConfig(), node.getCurrentPath());
             plugin.getLogger().info("Fixed broken nesting in " + desc + ".");
-            plugin.saveConfig();
+            saveNode(node.getCurrentPath());
         }
 
         Map<String, Boolean> result = new LinkedHashMap<>();
         // Do the actual getting of permissions
         for (String key : node.getKeys(false)) {
             if (node.isBoolean(key)) {
-                result.put(key, node.getBoolean(key));
+                // every user and group with the node holds the same string
+                result.put(SymbolTable.NODES.intern(key), node.getBoolean(key));
             } else {
                 ++failures;
                 if (firstFailure.length() == 0) {
@@ -266,6 +1061,7 @@ final public class PermissionManager {
             plugin.getLogger().warning("In " + desc + ": " + firstFailure + " is non-boolean (+" + (failures-1) + " more).");
         }
 
+        metrics.stop(Metrics.Operation.READ_PERMISSIONS, start);
         return result;
     }
 
@@ -273,18 +1069,62 @@ final public class PermissionManager {
         if (player == null) {
             return;
         }
+        recalculations.remove(player.getUniqueId());
         PermissionAttachment attachment = permissions.get(player.getUniqueId());
         if (attachment == null) {
             return;
         }
 
-        Map<String, Boolean> values = calculatePlayerPermissions(player, player.getWorld().getName());
+        long start = metrics.start();
+        applyAttachment(player, attachment, calculatePlayerPermissions(player, player.getWorld().getName()));
+        metrics.stop(Metrics.Operation.CALCULATE_ATTACHMENT, start);
+    }
 
+    void applyAttachment(Player player, PermissionAttachment attachment, Map<String, Boolean> values) {
         // Fill the attachment reflectively so we don't recalculate for each permission
         // it turns out there's a lot of permissions!
         Map<String, Boolean> dest = reflectMap(attachment);
-        dest.clear();
-        dest.putAll(values);
+
+        // the attachment still holds what was applied last time, the order matters to the server
+        // (later nodes override the children of earlier ones) so only a common prefix can be kept
+        int common = 0;
+        Iterator<Map.Entry<String, Boolean>> old = dest.entrySet().iterator();
+        for (Map.Entry<String, Boolean> entry : values.entrySet()) {
+            if (!old.hasNext() || !entry.equals(old.next())) {
+                break;
+            }
+            common++;
+        }
+        int changes = (dest.size() - common) + (values.size() - common);
+        if (changes == 0) {
+            metrics.increment(Metrics.Counter.SKIPPED_RECALCULATIONS);
+            return;
+        }
+
+        if (changes <= values.size() / 2) {
+            // drop everything after the common prefix and append the new remainder
+            old = dest.entrySet().iterator();
+            for (int i = 0; i < common; i++) {
+                old.next();
+            }
+            while (old.hasNext()) {
+                old.next();
+                old.remove();
+            }
+            Iterator<Map.Entry<String, Boolean>> added = values.entrySet().iterator();
+            for (int i = 0; i < common; i++) {
+                added.next();
+            }
+            while (added.hasNext()) {
+                Map.Entry<String, Boolean> entry = added.next();
+                dest.put(entry.getKey(), entry.getValue());
+            }
+            metrics.increment(Metrics.Counter.PARTIAL_RECALCULATIONS);
+        } else {
+            dest.clear();
+            dest.putAll(values);
+            metrics.increment(Metrics.Counter.FULL_RECALCULATIONS);
+        }
 
         player.recalculatePermissions();
     }
@@ -304,85 +1144,238 @@ final public class PermissionManager {
         }
     }
 
-    // normally, LinkedHashMap.put (and thus putAll) will not reorder the list
-    // if that key is already in the map, which we don't want - later puts should
-    // always be bumped to the end of the list
-    <K, V> void put(Map<K, V> dest, K key, V value) {
-        dest.remove(key);
-        dest.put(key, value);
+    Snapshot getSnapshot() {
+        return snapshot;
     }
 
-    <K, V> void putAll(Map<K, V> dest, Map<K, V> src) {
-        for (Map.Entry<K, V> entry : src.entrySet()) {
-            put(dest, entry.getKey(), entry.getValue());
+    Map<String, Boolean> calculatePlayerPermissions(Player player, String world) {
+        Snapshot data = snapshot;
+        Snapshot.Entry user = data.getUser(player.getUniqueId(), player.getName());
+        if (!permissions.containsKey(player.getUniqueId())) {
+            return data.getPlayerPermissions(user, world);
         }
-    }
 
-    Map<String, Boolean> calculatePlayerPermissions(Player player, String world) {
-        ConfigurationSection node = getUserNode(player);
+        // the layers stay valid until the groups or this user change, and so does the chat format
+        PlayerLayers cached = layers.get(player.getUniqueId());
+        if (cached == null || cached.snapshot != data || cached.user != user) {
+            metrics.miss(Metrics.Cache.PLAYERS);
+            cached = new PlayerLayers(data, user);
+            layers.put(player.getUniqueId(), cached);
+            formats.put(player.getUniqueId(), buildChatFormat(data, player));
+        } else {
+            metrics.hit(Metrics.Cache.PLAYERS);
+        }
+        return cached.getPermissions(world);
+    }
 
-        // if the player isn't in the config, act like they're in default
-        if (node == null) {
-            return calculateGroupPermissions("default", world);
+    /**
+     * Moves the cached layers of a player a change didn't affect over to the new snapshot, so they aren't resolved
+     * again on the next lookup. Layers which were already out of date before the change are left alone.
+     */
+    private void keepLayers(Player player, Snapshot before, Snapshot after) {
+        if (before == after) {
+            return;
+        }
+        PlayerLayers cached = layers.get(player.getUniqueId());
+        if (cached != null && cached.snapshot == before && cached.user == before.getUser(player.getUniqueId(), player.getName())) {
+            layers.put(player.getUniqueId(), cached.rebind(after, after.getUser(player.getUniqueId(), player.getName()),
+                    player.getWorld().getName()));
         }
+    }
+
+    /**
+     * Gets the chat format of a player, with the prefix of their first group in place. Can be called from any thread.
+     *
+     * @param player The player.
+     * @return The format, with the name and message as the first and second argument.
+     */
+    String getChatFormat(Player player) {
+        String result = formats.get(player.getUniqueId());
+        return result != null ? result : buildChatFormat(snapshot, player);
+    }
+
+    String buildChatFormat(Snapshot data, Player player) {
+        Snapshot.Entry user = data.getUser(player.getUniqueId(), player.getName());
+        // if the player isn't in the config (or in no group), act like they're in default
+        String name = user == null || user.groups.isEmpty() ? "default" : user.groups.get(0);
+        Snapshot.Entry group = data.getGroup(name);
+        String prefix = group != null ? group.prefix : name;
+        return format.replace("%prefix", ChatColor.translateAlternateColorCodes('&', prefix));
+    }
+
+    Map<String, Boolean> calculateGroupPermissions(String group, String world) {
+        return snapshot.getGroupPermissions(group, world);
+    }
+
+    static final class PlayerLayers {
 
-        String nodePath = node.getCurrentPath();
-        Map<String, Boolean> perms = new LinkedHashMap<>();
+        final Snapshot snapshot;
+        final Snapshot.Entry user;
+        final Layer base;
+        private final Map<String, Layer> overlays = new ConcurrentHashMap<>();
+        private final Map<String, PermissionTrie> tries = new ConcurrentHashMap<>();
 
-        // first, apply the player's groups (getStringList returns an empty list if not found)
-        // later groups override earlier groups
-        for (String group : node.getStringList("groups")) {
-            putAll(perms, calculateGroupPermissions(group, world));
+        PlayerLayers(Snapshot snapshot, Snapshot.Entry user) {
+            this(snapshot, user, snapshot.getPlayerBase(user));
         }
 
-        // now apply user-specific permissions
-        if (getNode(nodePath + "/permissions") != null) {
-            putAll(perms, getAllPerms("user " + player, nodePath + "/permissions"));
+        private PlayerLayers(Snapshot snapshot, Snapshot.Entry user, Layer base) {
+            this.snapshot = snapshot;
+            this.user = user;
+            this.base = base;
         }
 
-        // now apply world- and user-specific permissions
-        if (getNode(nodePath + "/worlds/" + world) != null) {
-            putAll(perms, getAllPerms("user " + player + " world " + world, nodePath + "/worlds/" + world));
+        /**
+         * The same layers for a snapshot which didn't change them. Only the world the player is in is kept, a change
+         * is only checked against that one.
+         */
+        PlayerLayers rebind(Snapshot snapshot, Snapshot.Entry user, String world) {
+            PlayerLayers result = new PlayerLayers(snapshot, user, base);
+            Layer overlay = overlays.get(world);
+            if (overlay != null) {
+                result.overlays.put(world, overlay);
+            }
+            PermissionTrie trie = tries.get(world);
+            if (trie != null) {
+                result.tries.put(world, trie);
+            }
+            return result;
         }
 
-        return perms;
-    }
+        Layer getOverlay(String world) {
+            return overlays.computeIfAbsent(world, w -> snapshot.getPlayerOverlay(user, w));
+        }
 
-    Map<String, Boolean> calculateGroupPermissions(String group, String world) {
-        return calculateGroupPermissions0(new HashSet<>(), group, world);
-    }
+        Map<String, Boolean> getPermissions(String world) {
+            if (Snapshot.isShared(user)) {
+                return snapshot.getSharedPermissions(user, world);
+            }
+            return Layer.compose(base, getOverlay(world));
+        }
 
-    Map<String, Boolean> calculateGroupPermissions0(Set<String> recursionBuffer, String group, String world) {
-        String groupNode = "groups/" + group;
+        PermissionTrie getTrie(String world) {
+            return tries.computeIfAbsent(world, w -> PermissionTrie.compile(getPermissions(w)));
+        }
 
-        // if the group's not in the config, nothing
-        if (getNode(groupNode) == null) {
-            return new LinkedHashMap<>();
+        // the layers this keeps, see Snapshot.estimateResolvedSize
+        long estimateSize(Set<Object> seen) {
+            long result = Snapshot.estimateSize(base, seen);
+            for (Layer overlay : overlays.values()) {
+                result += Snapshot.estimateSize(overlay, seen);
+            }
+            return result;
         }
+    }
+
+    /**
+     * The differences between the snapshot before a reload and what was read by it.
+     */
+    static final class Changes {
 
-        recursionBuffer.add(group);
-        Map<String, Boolean> perms = new LinkedHashMap<>();
+        // for the report, by configured name
+        final Set<String> groups = new TreeSet<>(String.CASE_INSENSITIVE_ORDER);
+        final Set<String> prefixes = new TreeSet<>(String.CASE_INSENSITIVE_ORDER);
+        // lower-cased names of the groups (and those inheriting them) whose world-independent permissions changed
+        final Set<String> base = new HashSet<>();
+        // the same for world-specific permissions, by lower-cased world
+        final Map<String, Set<String>> worlds = new TreeMap<>();
+        // lower-cased keys of the users which were added, removed or changed
+        final Set<String> users = new HashSet<>();
+        // the snapshot the changes were made to
+        final Snapshot before;
+        boolean format;
+        boolean everyone;
 
-        // first apply any parent groups (see calculatePlayerPermissions for more)
-        for (String parent : getNode(groupNode).getStringList("inheritance")) {
-            if (recursionBuffer.contains(parent)) {
-                plugin.getLogger().warning("In group " + group + ": recursive inheritance from " + parent);
-                continue;
+        Changes(Snapshot old, Map<String, Snapshot.Entry> groups, GroupGraph graph, Users users) {
+            this.before = old;
+            Set<String> keys = new LinkedHashSet<>(groups.keySet());
+            for (Snapshot.Entry entry : old.getGroups()) {
+                keys.add(NodeIndex.key(entry.key));
+            }
+            for (String key : keys) {
+                Snapshot.Entry before = old.getGroup(key);
+                Snapshot.Entry after = groups.get(key);
+                // the inheritance may have changed, so take the children from before and after
+                Set<String> descendants = new HashSet<>(old.graph.getDescendants(key));
+                descendants.addAll(graph.getDescendants(key));
+                if (before == null || after == null || !before.sameBase(after)) {
+                    this.groups.add(after != null ? after.key : before.key);
+                    base.addAll(descendants);
+                    continue;
+                }
+                Set<String> changed = before.changedWorlds(after);
+                if (!changed.isEmpty()) {
+                    this.groups.add(after.key);
+                    for (String world : changed) {
+                        worlds.computeIfAbsent(world, k -> new HashSet<>()).addAll(descendants);
+                    }
+                } else if (!before.prefix.equals(after.prefix)) {
+                    prefixes.add(after.key);
+                }
             }
 
-            putAll(perms, calculateGroupPermissions0(recursionBuffer, parent, world));
+            for (Snapshot.Entry after : users.values()) {
+                Snapshot.Entry before = old.getUser(after.key);
+                if (before == null || !before.sameBase(after) || !before.changedWorlds(after).isEmpty()) {
+                    this.users.add(NodeIndex.key(after.key));
+                }
+            }
+            for (Snapshot.Entry before : old.getUsers()) {
+                if (users.get(before.key) == null) {
+                    this.users.add(NodeIndex.key(before.key));
+                }
+            }
         }
 
-        // now apply the group's permissions
-        if (getNode(groupNode + "/permissions") != null) {
-            putAll(perms, getAllPerms("group " + group, groupNode + "/permissions"));
+        /**
+         * @return The lower-cased names of every group whose resolved permissions may have changed.
+         */
+        Set<String> getInvalidated() {
+            Set<String> result = new HashSet<>(base);
+            for (Set<String> groups : worlds.values()) {
+                result.addAll(groups);
+            }
+            return result;
         }
 
-        // now apply world-specific permissions
-        if (getNode(groupNode + "/worlds/" + world) != null) {
-            putAll(perms, getAllPerms("group " + group + " world " + world, groupNode + "/worlds/" + world));
+        /**
+         * Checks whether the permissions of an online player can have changed.
+         * @param player The player.
+         * @param user The user after the reload, or null if the player isn't in the configuration.
+         * @return True if they have to be recalculated.
+         */
+        boolean affects(Player player, Snapshot.Entry user) {
+            if (everyone || users.contains(NodeIndex.key(player.getUniqueId().toString()))
+                    || users.contains(NodeIndex.key(player.getName()))) {
+                return true;
+            }
+            Set<String> world = worlds.getOrDefault(NodeIndex.key(player.getWorld().getName()), Collections.emptySet());
+            // if the player isn't in the config, act like they're in default
+            for (String group : user != null ? user.groups : Collections.singletonList("default")) {
+                String key = NodeIndex.key(group);
+                if (base.contains(key) || world.contains(key)) {
+                    return true;
+                }
+            }
+            return false;
         }
+    }
 
-        return perms;
+    static final class Prepared {
+
+        final long version;
+        final String world;
+        final Map<String, Boolean> permissions;
+        // the user read from a lazy storage along the way, or null
+        final String key;
+        final ConfigurationSection stored;
+
+        Prepared(long version, String world, Map<String, Boolean> permissions, String key, ConfigurationSection stored) {
+            this.version = version;
+            this.world = world;
+            this.permissions = permissions;
+            this.key = key;
+            this.stored = stored;
+        }
     }
 }
@@ -0,0 +1,155 @@
+package ru.gtncraft.permissions;
+
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+/**
+ * Resolved permissions stored as the numbers of their nodes (see {@link SymbolTable}) and one bit per value. The same
+ * instance is handed to everyone with the same groups in the same world. Immutable.
+ */
+final class PermissionSet extends AbstractMap<String, Boolean> {
+
+    static final PermissionSet EMPTY = new PermissionSet(new int[0], new long[0], 0);
+
+    private final int[] ids;
+    private final long[] values;
+    private final int size;
+    // built on the first lookup by node, most sets are only ever iterated
+    private Lookup lookup;
+
+    private static final class Lookup {
+
+        // the ids in ascending order and where they are
+        private final int[] sorted;
+        private final int[] positions;
+
+        private Lookup(int[] ids, int size) {
+            sorted = new int[size];
+            positions = new int[size];
+            sort(ids, size, sorted, positions);
+        }
+    }
+
+    /**
+     * @param ids The numbers of the nodes, in order. Not copied.
+     * @param values The values, bit i is the value of the i-th node. Not copied.
+     * @param size The number of nodes.
+     */
+    PermissionSet(int[] ids, long[] values, int size) {
+        this.ids = ids;
+        this.values = values;
+        this.size = size;
+    }
+
+    /**
+     * Sorts the first entries of an array of ids and remembers where each one was.
+     */
+    static void sort(int[] ids, int size, int[] sorted, int[] positions) {
+        long[] pairs = new long[size];
+        for (int i = 0; i < size; i++) {
+            pairs[i] = ((long) ids[i] << 32) | i;
+        }
+        Arrays.sort(pairs);
+        for (int i = 0; i < size; i++) {
+            sorted[i] = (int) (pairs[i] >>> 32);
+            positions[i] = (int) pairs[i];
+        }
+    }
+
+    /**
+     * Finds an id in the output of {@link #sort}.
+     * @return Where the id was, or -1.
+     */
+    static int find(int[] sorted, int[] positions, int id) {
+        int i = Arrays.binarySearch(sorted, id);
+        return i < 0 ? -1 : positions[i];
+    }
+
+    static boolean get(long[] bits, int i) {
+        return (bits[i >>> 6] & (1L << i)) != 0;
+    }
+
+    static void set(long[] bits, int i, boolean value) {
+        if (value) {
+            bits[i >>> 6] |= 1L << i;
+        }
+    }
+
+    /**
+     * Estimates the heap this takes.
+     * @return The size in bytes, not counting the node strings.
+     */
+    long estimateSize() {
+        // object headers and fields, then a number, a bit and (once looked up) a lookup entry per node
+        return 48 + size * (lookup != null ? 12L : 4L) + values.length * 8L;
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    @Override
+    public boolean containsKey(Object key) {
+        return indexOf(key) >= 0;
+    }
+
+    @Override
+    public Boolean get(Object key) {
+        int i = indexOf(key);
+        return i < 0 ? null : get(values, i);
+    }
+
+    private int indexOf(Object key) {
+        if (!(key instanceof String)) {
+            return -1;
+        }
+        // don't give new strings a number just to find out they aren't here
+        int id = SymbolTable.NODES.find((String) key);
+        if (id < 0) {
+            return -1;
+        }
+        // racy but safe: the fields of a lookup are final, at worst it is built twice
+        Lookup current = lookup;
+        if (current == null) {
+            lookup = current = new Lookup(ids, size);
+        }
+        return find(current.sorted, current.positions, id);
+    }
+
+    @Override
+    public Set<Map.Entry<String, Boolean>> entrySet() {
+        return new AbstractSet<Map.Entry<String, Boolean>>() {
+            @Override
+            public Iterator<Map.Entry<String, Boolean>> iterator() {
+                return new Iterator<Map.Entry<String, Boolean>>() {
+                    private int next = 0;
+
+                    @Override
+                    public boolean hasNext() {
+                        return next < size;
+                    }
+
+                    @Override
+                    public Map.Entry<String, Boolean> next() {
+                        if (next >= size) {
+                            throw new NoSuchElementException();
+                        }
+                        int i = next++;
+                        return new SimpleImmutableEntry<>(SymbolTable.NODES.name(ids[i]), get(values, i));
+                    }
+                };
+            }
+
+            @Override
+            public int size() {
+                return size;
+            }
+        };
+    }
+}
@@ -0,0 +1,112 @@
+package ru.gtncraft.permissions;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Resolved permissions compiled into a prefix tree over the dot-separated parts of the nodes, so a check only has to
+ * follow the parts of the node it asks about. A node ending in {@code .*} covers every node below it and {@code *}
+ * covers everything. If several entries cover a node, the one which comes last in the resolved permissions wins,
+ * just like the later of two entries for the same node does.
+ *
+ * Nothing is changed after construction, so one tree can be shared by every thread.
+ */
+final class PermissionTrie {
+
+    static final PermissionTrie EMPTY = new PermissionTrie(new Node());
+
+    private static final class Node {
+
+        private final Map<String, Node> children = new HashMap<>();
+        // the position of the entry for exactly this node and for the wildcard below it, -1 if there is none
+        private int exact = -1;
+        private boolean exactValue;
+        private int wildcard = -1;
+        private boolean wildcardValue;
+    }
+
+    private final Node root;
+
+    private PermissionTrie(Node root) {
+        this.root = root;
+    }
+
+    /**
+     * Compiles resolved permissions.
+     * @param perms The permissions, later entries override earlier ones.
+     * @return The tree.
+     */
+    static PermissionTrie compile(Map<String, Boolean> perms) {
+        if (perms.isEmpty()) {
+            return EMPTY;
+        }
+        Node root = new Node();
+        int position = 0;
+        for (Map.Entry<String, Boolean> entry : perms.entrySet()) {
+            String key = NodeIndex.key(entry.getKey());
+            boolean value = entry.getValue();
+            Node node = root;
+            if (key.equals("*")) {
+                node.wildcard = position;
+                node.wildcardValue = value;
+            } else if (key.endsWith(".*")) {
+                node = walk(node, key.substring(0, key.length() - 2));
+                node.wildcard = position;
+                node.wildcardValue = value;
+            } else {
+                node = walk(node, key);
+                node.exact = position;
+                node.exactValue = value;
+            }
+            position++;
+        }
+        return new PermissionTrie(root);
+    }
+
+    private static Node walk(Node node, String path) {
+        int start = 0;
+        while (true) {
+            int end = path.indexOf('.', start);
+            String part = path.substring(start, end < 0 ? path.length() : end);
+            node = node.children.computeIfAbsent(part, k -> new Node());
+            if (end < 0) {
+                return node;
+            }
+            start = end + 1;
+        }
+    }
+
+    /**
+     * Looks up the value of a node, in time proportional to the number of its parts.
+     * @param permission The node.
+     * @return The value of the last entry covering the node, or null if there is none.
+     */
+    Boolean get(String permission) {
+        String key = NodeIndex.key(permission);
+        Node node = root;
+        int best = root.wildcard;
+        boolean value = root.wildcardValue;
+        int start = 0;
+        while (true) {
+            int end = key.indexOf('.', start);
+            node = node.children.get(key.substring(start, end < 0 ? key.length() : end));
+            if (node == null) {
+                break;
+            }
+            if (end < 0) {
+                if (node.exact > best) {
+                    best = node.exact;
+                    value = node.exactValue;
+                }
+                break;
+            }
+            // a wildcard only covers the nodes below it, not the node itself
+            if (node.wildcard > best) {
+                best = node.wildcard;
+                value = node.wildcardValue;
+            }
+            start = end + 1;
+        }
+        return best < 0 ? null : value;
+    }
+}
@@ -1,6 +1,8 @@
 package ru.gtncraft.permissions;
 
+import com.google.common.hash.HashCode;
 import org.bukkit.Bukkit;
+import org.bukkit.configuration.ConfigurationSection;
 import org.bukkit.configuration.InvalidConfigurationException;
 import org.bukkit.configuration.file.FileConfiguration;
 import org.bukkit.configuration.file.YamlConfiguration;
@@ -12,6 +14,9 @@ import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.sql.SQLException;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.logging.Level;
@@ -22,21 +27,126 @@ final public class Permissions extends JavaPlugin {
 
     private YamlConfiguration config;
     private PermissionManager manager;
+    private ConfigWriter writer;
+    private ConfigWatcher watcher;
+    private Journal journal;
+    private Sync sync;
+    private final Metrics metrics = new Metrics(false);
     public boolean configLoadError = false;
 
     @Override
     public void onEnable() {
         saveDefaultConfig();
+        try {
+            journal = new Journal(new File(getDataFolder(), "journal"), getLogger());
+        } catch (IOException ex) {
+            getLogger().log(Level.SEVERE, "Failed to open the journal, changes are only saved with the configuration", ex);
+        }
+        // replays the journal
         reloadConfig();
-        manager = new PermissionManager(this);
+        File file = new File(getDataFolder(), "config.yml");
+        writer = new ConfigWriter(this, file, config.getLong("save-interval", 40), config.getLong("compact-interval", 6000),
+                metrics, journal);
+        if (journal != null && !journal.isEmpty()) {
+            writer.markDirty();
+        }
+        manager = new PermissionManager(this, metrics, openStorage(), journal);
+        if (config.getBoolean("watch-config", false)) {
+            try {
+                watcher = new ConfigWatcher(this, file, writer);
+            } catch (IOException ex) {
+                getLogger().log(Level.WARNING, "Failed to watch the configuration for changes", ex);
+            }
+        }
+        String directory = config.getString("sync-directory", "");
+        if (!directory.isEmpty()) {
+            File folder = new File(directory);
+            try {
+                setTransport(new DirectoryTransport(folder.isAbsolute() ? folder : new File(getDataFolder(), directory),
+                        getLogger()));
+            } catch (IOException ex) {
+                getLogger().log(Level.WARNING, "Failed to start syncing with other servers", ex);
+            }
+        }
+        Bukkit.getScheduler().runTaskTimer(this, manager.getExpiries(), 1, 1);
+        Bukkit.getScheduler().runTaskTimer(this, manager.getRecalculations(), 1, 1);
         Bukkit.getOnlinePlayers().forEach(getManager()::registerPlayer);
-        new Listeners(this);
+        new Listeners(this, manager);
         new Reload(this);
     }
 
     @Override
     public void onDisable() {
+        if (watcher != null) {
+            watcher.close();
+        }
+        if (sync != null) {
+            sync.close();
+        }
         Bukkit.getOnlinePlayers().forEach(getManager()::unregisterPlayer);
+        manager.close();
+        writer.close();
+        if (journal != null) {
+            journal.close();
+        }
+    }
+
+    /**
+     * Exchanges changes to users and groups with other servers through a transport, replacing the one used so far.
+     * Must be called on the main thread.
+     *
+     * @param transport The transport, or null to stop.
+     * @throws IOException If the transport couldn't be started.
+     */
+    public void setTransport(Transport transport) throws IOException {
+        if (sync != null) {
+            sync.close();
+            sync = null;
+            manager.setSync(null);
+        }
+        if (transport != null) {
+            sync = new Sync(this, transport);
+            manager.setSync(sync);
+        }
+    }
+
+    private Storage openStorage() {
+        if (!config.getString("storage", "yaml").equalsIgnoreCase("sqlite")) {
+            return new YamlStorage(this, journal);
+        }
+        ConfigurationSection users = config.getConfigurationSection("users");
+        if (users != null && !users.getKeys(false).isEmpty()) {
+            getLogger().severe("config.yml still contains users, keeping them there until /permissions migrate moves them to users.db.");
+            return new YamlStorage(this, journal);
+        }
+        try {
+            Storage storage = new SqliteStorage(this, new File(getDataFolder(), "users.db"));
+            writer.setSkipUsers(true);
+            return storage;
+        } catch (SQLException ex) {
+            getLogger().log(Level.SEVERE, "Failed to open users.db, keeping users in config.yml", ex);
+            return new YamlStorage(this, journal);
+        }
+    }
+
+    /**
+     * Keeps the users in another storage from now on, they're removed from config.yml. Must be called on the main
+     * thread.
+     *
+     * @param storage The storage, which already holds every user.
+     */
+    void useStorage(Storage storage) {
+        Storage old = manager.getStorage();
+        config.set("storage", "sqlite");
+        config.set("users", null);
+        writer.setSkipUsers(true);
+        manager.setStorage(storage);
+        old.close();
+        // loads the online players from the new storage
+        manager.reload();
+        manager.applyReload();
+        saveConfig();
+        compactConfig();
     }
 
     @Override
@@ -46,10 +156,17 @@ final public class Permissions extends JavaPlugin {
 
     @Override
     public void reloadConfig() {
+        long start = metrics.start();
+        if (writer != null) {
+            writer.discard();
+        }
         config = new YamlConfiguration();
         config.options().pathSeparator('/');
+        HashCode content = null;
         try {
-            config.load(new File(getDataFolder(), "config.yml"));
+            byte[] bytes = Files.readAllBytes(new File(getDataFolder(), "config.yml").toPath());
+            content = ConfigWriter.hash(bytes);
+            config.loadFromString(new String(bytes, StandardCharsets.UTF_8));
         } catch (InvalidConfigurationException ex) {
             configLoadError = true;
 
@@ -99,20 +216,76 @@ final public class Permissions extends JavaPlugin {
         } catch (Exception ex) {
             getLogger().log(Level.SEVERE, "Failed to load configuration", ex);
         }
+        if (!configLoadError && content != null) {
+            replayJournal(content);
+        }
+        configChanged(start);
+    }
+
+    /**
+     * Replaces the configuration with one which was already read and found to be valid, then recalculates the
+     * players affected by the changes.
+     *
+     * @param loaded The new configuration.
+     * @param content The hash of the file it was read from.
+     */
+    void reloadConfig(YamlConfiguration loaded, HashCode content) {
+        long start = metrics.start();
+        writer.discard();
+        config = loaded;
+        configLoadError = false;
+        replayJournal(content);
+        configChanged(start);
+        ReloadSummary summary = manager.applyReload();
+        getLogger().info("Reloaded the changed configuration, " + summary.getPlayers() + " players queued for recalculation.");
+    }
+
+    // changes which weren't written to the file yet are applied again, unless someone else changed the file
+    private void replayJournal(HashCode content) {
+        if (journal != null && !config.getKeys(false).isEmpty()) {
+            int count = journal.replay(config, content);
+            if (count < 0) {
+                int discarded = journal.discard(content);
+                if (discarded > 0) {
+                    getLogger().warning("config.yml was changed by someone else, discarded " + discarded
+                            + " changes from the journal which weren't saved to it yet. They're kept in the journal"
+                            + " folder as .bak files until this happens again.");
+                }
+            } else if (count > 0) {
+                getLogger().info("Replayed " + count + " changes from the journal.");
+                if (writer != null) {
+                    writer.markDirty();
+                }
+            }
+        }
+    }
+
+    private void configChanged(long start) {
+        metrics.setEnabled(config.getBoolean("metrics", false));
+        if (manager != null) {
+            manager.reload();
+        }
+        metrics.stop(Metrics.Operation.RELOAD, start);
     }
 
+    /**
+     * Schedules the configuration to be saved, changes made in the meantime are written along with it.
+     */
     @Override
     public void saveConfig() {
         // If there's no keys (such as in the event of a load failure) don't save
-        if (config.getKeys(true).isEmpty()) {
-            try {
-                config.save(new File(getDataFolder(), "config.yml"));
-            } catch (IOException ex) {
-                getLogger().log(Level.SEVERE, "Failed to save configuration", ex);
-            }
+        if (!config.getKeys(false).isEmpty()) {
+            writer.markDirty();
         }
     }
 
+    /**
+     * Writes the configuration right away rather than recording changes in the journal, used after large changes.
+     */
+    void compactConfig() {
+        writer.compact();
+    }
+
     public PermissionManager getManager() {
         return manager;
     }
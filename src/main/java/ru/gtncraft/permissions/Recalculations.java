@@ -0,0 +1,100 @@
+package ru.gtncraft.permissions;
+
+import org.bukkit.Bukkit;
+import org.bukkit.entity.Player;
+
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Recalculates online players a few at a time, so a change which affects many of them doesn't stall a tick. A player
+ * is queued once however often they're asked for, and every tick the queue is worked off until the time budget for
+ * the tick (see {@code recalculate-budget} in the configuration) is used up, at least one player per tick. Players
+ * whose permissions are about to be checked go first. Without a budget, players are recalculated right away.
+ *
+ * Main thread only, except for {@link #prioritize(UUID)}.
+ */
+final class Recalculations implements Runnable {
+
+    private final PermissionManager manager;
+    private final long budget;
+    // in the order they were queued
+    private final Set<UUID> queue = new LinkedHashSet<>();
+    // players to recalculate before the others, if they're queued
+    private final Set<UUID> urgent = ConcurrentHashMap.newKeySet();
+
+    /**
+     * @param budget The time to spend per tick in nanoseconds, or 0 to recalculate right away.
+     */
+    Recalculations(final PermissionManager manager, final long budget) {
+        this.manager = manager;
+        this.budget = budget;
+    }
+
+    /**
+     * Queues a player to be recalculated.
+     * @param player The player.
+     */
+    void add(Player player) {
+        if (budget == 0) {
+            manager.calculateAttachment(player);
+        } else {
+            queue.add(player.getUniqueId());
+        }
+    }
+
+    /**
+     * Takes a player off the queue, called when they're recalculated or leave.
+     * @param uuid The UUID of the player.
+     */
+    void remove(UUID uuid) {
+        queue.remove(uuid);
+    }
+
+    boolean contains(UUID uuid) {
+        return queue.contains(uuid);
+    }
+
+    /**
+     * Moves a player to the front of the queue if they're in it. Can be called from any thread.
+     * @param uuid The UUID of the player.
+     */
+    void prioritize(UUID uuid) {
+        urgent.add(uuid);
+    }
+
+    /**
+     * @return The number of players waiting to be recalculated.
+     */
+    int size() {
+        return queue.size();
+    }
+
+    @Override
+    public void run() {
+        if (queue.isEmpty()) {
+            urgent.clear();
+            return;
+        }
+        long start = System.nanoTime();
+        Iterator<UUID> first = urgent.iterator();
+        do {
+            UUID uuid = null;
+            while (uuid == null && first.hasNext()) {
+                uuid = first.next();
+                first.remove();
+                if (!queue.contains(uuid)) {
+                    uuid = null;
+                }
+            }
+            if (uuid == null) {
+                uuid = queue.iterator().next();
+            }
+            queue.remove(uuid);
+            manager.calculateAttachment(Bukkit.getServer().getPlayer(uuid));
+        } while (!queue.isEmpty() && System.nanoTime() - start < budget);
+    }
+}
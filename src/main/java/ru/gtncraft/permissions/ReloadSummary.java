@@ -0,0 +1,69 @@
+package ru.gtncraft.permissions;
+
+import com.google.common.collect.ImmutableSet;
+
+import java.util.Set;
+
+/**
+ * What a reload of the configuration changed and how many players have to be recalculated because of it.
+ */
+public final class ReloadSummary {
+
+    private final Set<String> groups;
+    private final Set<String> prefixes;
+    private final Set<String> worlds;
+    private final int users;
+    private final boolean format;
+    private final int players;
+
+    ReloadSummary(Set<String> groups, Set<String> prefixes, Set<String> worlds, int users, boolean format, int players) {
+        this.groups = ImmutableSet.copyOf(groups);
+        this.prefixes = ImmutableSet.copyOf(prefixes);
+        this.worlds = ImmutableSet.copyOf(worlds);
+        this.users = users;
+        this.format = format;
+        this.players = players;
+    }
+
+    /**
+     * @return The groups which were added, removed or whose permissions or inheritance changed.
+     */
+    public Set<String> getGroups() {
+        return groups;
+    }
+
+    /**
+     * @return The groups of which only the prefix changed.
+     */
+    public Set<String> getPrefixes() {
+        return prefixes;
+    }
+
+    /**
+     * @return The worlds for which a group's world-specific permissions changed.
+     */
+    public Set<String> getWorlds() {
+        return worlds;
+    }
+
+    /**
+     * @return The number of users which were added, removed or whose groups or permissions changed.
+     */
+    public int getUsers() {
+        return users;
+    }
+
+    /**
+     * @return True if the chat format changed.
+     */
+    public boolean isFormatChanged() {
+        return format;
+    }
+
+    /**
+     * @return The number of online players queued to be recalculated, over the next ticks unless there's no budget.
+     */
+    public int getPlayers() {
+        return players;
+    }
+}
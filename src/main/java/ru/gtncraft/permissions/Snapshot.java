@@ -0,0 +1,408 @@
+package ru.gtncraft.permissions;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Iterables;
+import com.google.common.collect.Sets;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * An immutable copy of the groups and users in the configuration, which permissions can be resolved from on any
+ * thread. Groups are only ever replaced together with the whole snapshot, users are replaced one entry at a time.
+ */
+final class Snapshot {
+
+    /**
+     * The nodes a single group or user defines.
+     */
+    static final class Entry {
+
+        final String key;
+        final String name;
+        final String prefix;
+        final List<String> groups;
+        final Map<String, Boolean> permissions;
+        final Map<String, Map<String, Boolean>> worlds;
+
+        /**
+         * @param key The key of the group or user in the configuration.
+         * @param name The name field of a user, or null.
+         * @param prefix The chat prefix of a group.
+         * @param groups The groups a group inherits from or a user is in.
+         * @param permissions The permissions which apply in every world.
+         * @param worlds The world-specific permissions by lower-cased world name.
+         */
+        Entry(String key, String name, String prefix, List<String> groups,
+              Map<String, Boolean> permissions, Map<String, Map<String, Boolean>> worlds) {
+            this.key = key;
+            this.name = name;
+            this.prefix = prefix;
+            this.groups = ImmutableList.copyOf(groups);
+            this.permissions = ImmutableMap.copyOf(permissions);
+            ImmutableMap.Builder<String, Map<String, Boolean>> builder = ImmutableMap.builder();
+            for (Map.Entry<String, Map<String, Boolean>> entry : worlds.entrySet()) {
+                builder.put(entry.getKey(), ImmutableMap.copyOf(entry.getValue()));
+            }
+            this.worlds = builder.build();
+        }
+
+        Map<String, Boolean> getWorldPermissions(String world) {
+            Map<String, Boolean> result = worlds.get(NodeIndex.key(world));
+            return result == null ? ImmutableMap.of() : result;
+        }
+
+        /**
+         * Checks whether another entry has the same groups and world-independent permissions, in the same order.
+         * @param other The other entry.
+         * @return True if both resolve the same apart from world-specific permissions.
+         */
+        boolean sameBase(Entry other) {
+            return groups.equals(other.groups) && sameOrder(permissions, other.permissions);
+        }
+
+        /**
+         * Finds the worlds whose permissions differ from another entry.
+         * @param other The other entry.
+         * @return The lower-cased world names.
+         */
+        Set<String> changedWorlds(Entry other) {
+            Set<String> result = new HashSet<>();
+            for (String world : Sets.union(worlds.keySet(), other.worlds.keySet())) {
+                if (!sameOrder(getWorldPermissions(world), other.getWorldPermissions(world))) {
+                    result.add(world);
+                }
+            }
+            return result;
+        }
+
+        private static boolean sameOrder(Map<String, Boolean> a, Map<String, Boolean> b) {
+            if (a.size() != b.size()) {
+                return false;
+            }
+            // later nodes override earlier ones, so the same nodes in another order aren't the same
+            Iterator<Map.Entry<String, Boolean>> other = b.entrySet().iterator();
+            for (Map.Entry<String, Boolean> entry : a.entrySet()) {
+                if (!entry.equals(other.next())) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+
+    final GroupGraph graph;
+    private final Map<String, Entry> groups;
+    private final Users users;
+    // everything below is by lower-cased group name: the world-independent layers,
+    // then by world the world-specific layers, the resolved permissions and their tree
+    private final ConcurrentMap<String, Layer> bases;
+    private final ConcurrentMap<String, ConcurrentMap<String, Layer>> overlays;
+    private final ConcurrentMap<String, ConcurrentMap<String, PermissionSet>> cache;
+    private final ConcurrentMap<String, ConcurrentMap<String, PermissionTrie>> tries;
+    // by the lower-cased groups of users without permissions of their own, then by world
+    private final ConcurrentMap<List<String>, ConcurrentMap<String, PermissionSet>> shared;
+    private final Metrics metrics;
+
+    Snapshot(Map<String, Entry> groups, GroupGraph graph, Users users, Metrics metrics) {
+        this(groups, graph, users, new ConcurrentHashMap<>(), new ConcurrentHashMap<>(), new ConcurrentHashMap<>(),
+                new ConcurrentHashMap<>(), new ConcurrentHashMap<>(), metrics);
+    }
+
+    private Snapshot(Map<String, Entry> groups, GroupGraph graph, Users users,
+                     ConcurrentMap<String, Layer> bases,
+                     ConcurrentMap<String, ConcurrentMap<String, Layer>> overlays,
+                     ConcurrentMap<String, ConcurrentMap<String, PermissionSet>> cache,
+                     ConcurrentMap<String, ConcurrentMap<String, PermissionTrie>> tries,
+                     ConcurrentMap<List<String>, ConcurrentMap<String, PermissionSet>> shared,
+                     Metrics metrics) {
+        this.groups = ImmutableMap.copyOf(groups);
+        this.graph = graph;
+        this.users = users;
+        this.bases = bases;
+        this.overlays = overlays;
+        this.cache = cache;
+        this.tries = tries;
+        this.shared = shared;
+        this.metrics = metrics;
+    }
+
+    /**
+     * Creates a snapshot with new groups which shares the users and the resolved groups which are still valid.
+     * @param groups The new groups.
+     * @param graph The new inheritance graph.
+     * @param changed The lower-cased names of every group whose resolved permissions may have changed.
+     * @return The new snapshot.
+     */
+    Snapshot withGroups(Map<String, Entry> groups, GroupGraph graph, Set<String> changed) {
+        ConcurrentMap<String, Layer> keptBases = new ConcurrentHashMap<>(bases);
+        ConcurrentMap<String, ConcurrentMap<String, Layer>> keptOverlays = new ConcurrentHashMap<>(overlays);
+        ConcurrentMap<String, ConcurrentMap<String, PermissionSet>> kept = new ConcurrentHashMap<>(cache);
+        ConcurrentMap<String, ConcurrentMap<String, PermissionTrie>> keptTries = new ConcurrentHashMap<>(tries);
+        ConcurrentMap<List<String>, ConcurrentMap<String, PermissionSet>> keptShared = new ConcurrentHashMap<>(shared);
+        keptBases.keySet().removeAll(changed);
+        keptOverlays.keySet().removeAll(changed);
+        kept.keySet().removeAll(changed);
+        keptTries.keySet().removeAll(changed);
+        keptShared.keySet().removeIf(key -> !Collections.disjoint(key, changed));
+        return new Snapshot(groups, graph, users, keptBases, keptOverlays, kept, keptTries, keptShared, metrics);
+    }
+
+    /**
+     * Creates a snapshot with new users which shares the groups and everything resolved from them.
+     * @param users The new users.
+     * @return The new snapshot.
+     */
+    Snapshot withUsers(Users users) {
+        return new Snapshot(groups, graph, users, bases, overlays, cache, tries, shared, metrics);
+    }
+
+    Entry getGroup(String name) {
+        return groups.get(NodeIndex.key(name));
+    }
+
+    Collection<Entry> getGroups() {
+        return groups.values();
+    }
+
+    /**
+     * Gets a user by its key in the configuration.
+     * @param key The UUID, or the name for unconverted entries.
+     * @return The user, or null.
+     */
+    Entry getUser(String key) {
+        return users.get(key);
+    }
+
+    /**
+     * Gets a user by the name field (or the key, for unconverted entries).
+     * @param name The name of the player.
+     * @return The user, or null.
+     */
+    Entry getUserByName(String name) {
+        return users.getByName(name);
+    }
+
+    Collection<Entry> getUsers() {
+        return users.values();
+    }
+
+    /**
+     * Gets the users in a group, not counting those who are only in a group inheriting it.
+     * @param group The name of the group.
+     * @return The lower-cased keys of the users, in order.
+     */
+    NavigableSet<String> getMembers(String group) {
+        return users.getMembers(group);
+    }
+
+    /**
+     * Gets a user the same way the configuration is searched: by UUID first, then by name for unconverted entries.
+     * @param uuid The UUID of the player.
+     * @param name The name of the player, or null.
+     * @return The user, or null if the player isn't in the configuration.
+     */
+    Entry getUser(UUID uuid, String name) {
+        Entry entry = users.get(uuid.toString());
+        if (entry == null && name != null) {
+            entry = users.get(name);
+        }
+        return entry;
+    }
+
+    void putUser(Entry entry) {
+        users.put(entry);
+    }
+
+    void removeUser(String key) {
+        users.remove(key);
+    }
+
+    /**
+     * Resolves the permissions of a player.
+     * @param user The user, or null if the player isn't in the configuration.
+     * @param world The world the player is in.
+     * @return The permissions, later entries override earlier ones.
+     */
+    Map<String, Boolean> getPlayerPermissions(Entry user, String world) {
+        if (isShared(user)) {
+            // everyone in the same groups and world gets the same result, so only resolve it once
+            return getSharedPermissions(user, world);
+        }
+        return Layer.compose(getPlayerBase(user), getPlayerOverlay(user, world));
+    }
+
+    /**
+     * Checks whether a player has no permissions of their own, so they share the resolved permissions of everyone
+     * else in their groups.
+     * @param user The user, or null if the player isn't in the configuration.
+     * @return True if the player's permissions only depend on their groups.
+     */
+    static boolean isShared(Entry user) {
+        return user == null || (user.permissions.isEmpty() && user.worlds.isEmpty());
+    }
+
+    /**
+     * Resolves the permissions of a player without permissions of their own.
+     * @param user The user, or null if the player isn't in the configuration.
+     * @param world The world the player is in.
+     * @return The permissions, the same instance for everyone in the same groups and world.
+     */
+    PermissionSet getSharedPermissions(Entry user, String world) {
+        List<String> key = new ArrayList<>();
+        if (user == null) {
+            key.add("default");
+        } else {
+            for (String group : user.groups) {
+                key.add(NodeIndex.key(group));
+            }
+        }
+        ConcurrentMap<String, PermissionSet> worlds = shared.get(key);
+        PermissionSet result = worlds != null ? worlds.get(world) : null;
+        if (result != null) {
+            metrics.hit(Metrics.Cache.SHARED);
+            return result;
+        }
+        metrics.miss(Metrics.Cache.SHARED);
+        return shared.computeIfAbsent(key, k -> new ConcurrentHashMap<>())
+                     .computeIfAbsent(world, w -> Layer.compose(getPlayerBase(user), getPlayerOverlay(user, w)));
+    }
+
+    /**
+     * Estimates the heap taken by what was resolved and cached so far for groups and players sharing their groups,
+     * for diagnostics. Lookup tries aren't counted.
+     * @param seen What was counted already, by identity, is skipped and what this counts is added.
+     * @return The size in bytes.
+     */
+    long estimateResolvedSize(Set<Object> seen) {
+        long result = 0;
+        for (Layer layer : bases.values()) {
+            result += estimateSize(layer, seen);
+        }
+        for (Map<String, Layer> worlds : overlays.values()) {
+            for (Layer layer : worlds.values()) {
+                result += estimateSize(layer, seen);
+            }
+        }
+        for (Map<String, PermissionSet> worlds : Iterables.concat(cache.values(), shared.values())) {
+            for (PermissionSet set : worlds.values()) {
+                if (seen.add(set)) {
+                    result += set.estimateSize();
+                }
+            }
+        }
+        return result;
+    }
+
+    static long estimateSize(Layer layer, Set<Object> seen) {
+        return seen.add(layer) ? layer.estimateSize() : 0;
+    }
+
+    /**
+     * Gets the world-independent part of the permissions of a player.
+     * @param user The user, or null if the player isn't in the configuration.
+     * @return The layer.
+     */
+    Layer getPlayerBase(Entry user) {
+        // if the player isn't in the config, act like they're in default
+        if (user == null) {
+            return getGroupBase("default");
+        }
+
+        // first, apply the player's groups
+        // later groups override earlier groups
+        Layer layer = Layer.EMPTY;
+        int steps = 0;
+        for (String group : user.groups) {
+            layer = layer.append(getGroupBase(group), steps);
+            steps += 2 * graph.getAncestors(group).size();
+        }
+
+        // now apply user-specific permissions
+        return layer.append(Layer.of(user.permissions, 0), steps);
+    }
+
+    /**
+     * Gets the world-specific part of the permissions of a player.
+     * @param user The user, or null if the player isn't in the configuration.
+     * @param world The world.
+     * @return The layer.
+     */
+    Layer getPlayerOverlay(Entry user, String world) {
+        if (user == null) {
+            return getGroupOverlay("default", world);
+        }
+
+        Layer layer = Layer.EMPTY;
+        int steps = 0;
+        for (String group : user.groups) {
+            layer = layer.append(getGroupOverlay(group, world), steps);
+            steps += 2 * graph.getAncestors(group).size();
+        }
+
+        // now apply world- and user-specific permissions
+        return layer.append(Layer.of(user.getWorldPermissions(world), 1), steps);
+    }
+
+    /**
+     * Resolves the permissions of a group including everything it inherits.
+     * @param group The group.
+     * @param world The world.
+     * @return The permissions, the same instance for every caller until the group changes.
+     */
+    Map<String, Boolean> getGroupPermissions(String group, String world) {
+        // everyone in the same group and world gets the same result, so only resolve it once
+        return cache.computeIfAbsent(NodeIndex.key(group), k -> new ConcurrentHashMap<>())
+                    .computeIfAbsent(world, w -> Layer.compose(getGroupBase(group), getGroupOverlay(group, w)));
+    }
+
+    /**
+     * Gets the resolved permissions of a group compiled into a tree which understands wildcards.
+     * @param group The group.
+     * @param world The world.
+     * @return The tree, the same instance for every caller until the group changes.
+     */
+    PermissionTrie getGroupTrie(String group, String world) {
+        return tries.computeIfAbsent(NodeIndex.key(group), k -> new ConcurrentHashMap<>())
+                    .computeIfAbsent(world, w -> PermissionTrie.compile(getGroupPermissions(group, w)));
+    }
+
+    Layer getGroupBase(String group) {
+        Layer result = bases.get(NodeIndex.key(group));
+        if (result != null) {
+            metrics.hit(Metrics.Cache.GROUPS);
+            return result;
+        }
+        metrics.miss(Metrics.Cache.GROUPS);
+        return bases.computeIfAbsent(NodeIndex.key(group), k -> {
+            // parents come before the groups inheriting them (see getPlayerBase for more),
+            // if the group's not in the config there is nothing
+            Layer layer = Layer.EMPTY;
+            List<String> ancestors = graph.getAncestors(group);
+            for (int i = 0; i < ancestors.size(); i++) {
+                layer = layer.append(Layer.of(getGroup(ancestors.get(i)).permissions, 2 * i), 0);
+            }
+            return layer;
+        });
+    }
+
+    Layer getGroupOverlay(String group, String world) {
+        ConcurrentMap<String, Layer> worlds = overlays.get(NodeIndex.key(group));
+        Layer result = worlds != null ? worlds.get(world) : null;
+        if (result != null) {
+            metrics.hit(Metrics.Cache.GROUPS);
+            return result;
+        }
+        metrics.miss(Metrics.Cache.GROUPS);
+        return overlays.computeIfAbsent(NodeIndex.key(group), k -> new ConcurrentHashMap<>()).computeIfAbsent(world, w -> {
+            Layer layer = Layer.EMPTY;
+            List<String> ancestors = graph.getAncestors(group);
+            for (int i = 0; i < ancestors.size(); i++) {
+                layer = layer.append(Layer.of(getGroup(ancestors.get(i)).getWorldPermissions(w), 2 * i + 1), 0);
+            }
+            return layer;
+        });
+    }
+}
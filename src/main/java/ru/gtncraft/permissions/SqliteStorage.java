@@ -0,0 +1,325 @@
+package ru.gtncraft.permissions;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.bukkit.configuration.ConfigurationSection;
+import org.bukkit.configuration.InvalidConfigurationException;
+import org.bukkit.configuration.file.YamlConfiguration;
+import org.bukkit.plugin.Plugin;
+
+import java.io.File;
+import java.io.IOException;
+import java.sql.*;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiConsumer;
+import java.util.logging.Level;
+
+/**
+ * Keeps every user in a row of an SQLite database, using the driver which comes with CraftBukkit. Users are read
+ * when needed and written one row at a time on a background thread.
+ */
+final class SqliteStorage implements BulkStorage {
+
+    private final Plugin plugin;
+    private final Connection connection;
+    private final ExecutorService writer = Executors.newSingleThreadExecutor(
+            new ThreadFactoryBuilder().setNameFormat("Permissions Storage").setDaemon(true).build()
+    );
+    // rows which are about to be written (empty for a delete), by lower-cased key, so reads never see an older row
+    private final ConcurrentMap<String, Optional<Row>> pending = new ConcurrentHashMap<>();
+    // users read or imported per statement or transaction, the connection is free for others in between
+    private static final int PAGE = 500;
+
+    private static final class Row {
+
+        private final String name;
+        private final List<String> groups;
+        private final String data;
+
+        private Row(String name, List<String> groups, String data) {
+            this.name = name;
+            this.groups = groups;
+            this.data = data;
+        }
+    }
+
+    SqliteStorage(final Plugin plugin, final File file) throws SQLException {
+        this.plugin = plugin;
+        try {
+            Class.forName("org.sqlite.JDBC");
+        } catch (ClassNotFoundException ex) {
+            throw new SQLException("The SQLite driver is missing", ex);
+        }
+        connection = DriverManager.getConnection("jdbc:sqlite:" + file.getAbsolutePath());
+        try (Statement statement = connection.createStatement()) {
+            statement.executeUpdate("CREATE TABLE IF NOT EXISTS users (key TEXT PRIMARY KEY, name TEXT, data TEXT NOT NULL)");
+            statement.executeUpdate("CREATE INDEX IF NOT EXISTS users_name ON users (name COLLATE NOCASE)");
+            statement.executeUpdate("CREATE TABLE IF NOT EXISTS members (grp TEXT NOT NULL, key TEXT NOT NULL, PRIMARY KEY (grp, key))");
+        }
+    }
+
+    @Override
+    public boolean isLazy() {
+        return true;
+    }
+
+    @Override
+    public ConfigurationSection read(String key) {
+        String data;
+        Optional<Row> row = pending.get(NodeIndex.key(key));
+        if (row != null) {
+            data = row.isPresent() ? row.get().data : null;
+        } else {
+            data = query("SELECT data FROM users WHERE key = ?", NodeIndex.key(key));
+        }
+        return data != null ? parse(key, data) : null;
+    }
+
+    private ConfigurationSection parse(String key, String data) {
+        YamlConfiguration result = new YamlConfiguration();
+        result.options().pathSeparator('/');
+        try {
+            result.loadFromString(data);
+        } catch (InvalidConfigurationException ex) {
+            plugin.getLogger().log(Level.SEVERE, "The stored user " + key + " is invalid", ex);
+            return null;
+        }
+        return result;
+    }
+
+    @Override
+    public String findKey(String name) {
+        for (Map.Entry<String, Optional<Row>> entry : pending.entrySet()) {
+            if (entry.getValue().isPresent() && name.equalsIgnoreCase(entry.getValue().get().name)) {
+                return entry.getKey();
+            }
+        }
+        String result = query("SELECT key FROM users WHERE name = ? COLLATE NOCASE LIMIT 1", name);
+        // unconverted entries are keyed by the name
+        return result != null ? result : query("SELECT key FROM users WHERE key = ?", NodeIndex.key(name));
+    }
+
+    @Override
+    public Map<String, String> getMembers(String group, int offset, int limit, boolean converted) {
+        // rows still being written are left out, they are only pending for a moment
+        Map<String, String> result = new LinkedHashMap<>();
+        synchronized (connection) {
+            try (PreparedStatement statement = connection.prepareStatement("SELECT m.key, u.name FROM members m"
+                    + " JOIN users u ON u.key = m.key WHERE m.grp = ?" + (converted ? " AND length(m.key) = 36" : "")
+                    + " ORDER BY m.key LIMIT ? OFFSET ?")) {
+                statement.setString(1, NodeIndex.key(group));
+                statement.setInt(2, limit);
+                statement.setInt(3, offset);
+                try (ResultSet rows = statement.executeQuery()) {
+                    while (rows.next()) {
+                        result.put(rows.getString(1), rows.getString(2));
+                    }
+                }
+            } catch (SQLException ex) {
+                plugin.getLogger().log(Level.SEVERE, "Failed to read the members of " + group, ex);
+            }
+        }
+        return result;
+    }
+
+    @Override
+    public void save(String key, ConfigurationSection node) {
+        String id = NodeIndex.key(key);
+        Optional<Row> row = node != null ? Optional.of(toRow(node)) : Optional.empty();
+        pending.put(id, row);
+        writer.execute(() -> {
+            synchronized (connection) {
+                try {
+                    transaction(() -> write(id, row.orElse(null)));
+                } catch (SQLException ex) {
+                    plugin.getLogger().log(Level.SEVERE, "Failed to save user " + key, ex);
+                }
+            }
+            // unless it was changed again in the meantime
+            pending.remove(id, row);
+        });
+    }
+
+    @Override
+    public void save(String key, ConfigurationSection node, Collection<String> paths) {
+        // a row holds the whole user
+        save(key, node);
+    }
+
+    @Override
+    public void rename(String from, String to, ConfigurationSection node) {
+        save(from, null);
+        save(to, node);
+    }
+
+    @Override
+    public void forEachUser(BiConsumer<String, ConfigurationSection> consumer) throws IOException {
+        flush();
+        // a page at a time, so nobody waits for the connection while the consumer runs
+        String last = "";
+        while (true) {
+            Map<String, String> page = new LinkedHashMap<>();
+            synchronized (connection) {
+                try (PreparedStatement statement = connection.prepareStatement(
+                        "SELECT key, data FROM users WHERE key > ? ORDER BY key LIMIT " + PAGE)) {
+                    statement.setString(1, last);
+                    try (ResultSet rows = statement.executeQuery()) {
+                        while (rows.next()) {
+                            page.put(rows.getString(1), rows.getString(2));
+                        }
+                    }
+                } catch (SQLException ex) {
+                    throw new IOException("Failed to read users", ex);
+                }
+            }
+            for (Map.Entry<String, String> row : page.entrySet()) {
+                ConfigurationSection node = parse(row.getKey(), row.getValue());
+                if (node != null) {
+                    consumer.accept(row.getKey(), node);
+                }
+                last = row.getKey();
+            }
+            if (page.size() < PAGE) {
+                return;
+            }
+        }
+    }
+
+    @Override
+    public int importUsers(Iterator<Map.Entry<String, ConfigurationSection>> users) throws IOException {
+        // on the writer thread, after the changes stored so far
+        Future<Integer> result = writer.submit(() -> {
+            int count = 0;
+            while (users.hasNext()) {
+                // read before taking the lock, so offline players can be looked up while the next ones are parsed
+                Map<String, Row> batch = new LinkedHashMap<>();
+                while (batch.size() < PAGE && users.hasNext()) {
+                    Map.Entry<String, ConfigurationSection> user = users.next();
+                    batch.put(NodeIndex.key(user.getKey()), toRow(user.getValue()));
+                }
+                synchronized (connection) {
+                    transaction(() -> {
+                        for (Map.Entry<String, Row> user : batch.entrySet()) {
+                            write(user.getKey(), user.getValue());
+                        }
+                    });
+                }
+                count += batch.size();
+            }
+            return count;
+        });
+        try {
+            return result.get();
+        } catch (ExecutionException ex) {
+            throw new IOException("Failed to store users", ex.getCause());
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while storing users", ex);
+        }
+    }
+
+    // waits for the changes stored so far to be written
+    private void flush() throws IOException {
+        try {
+            writer.submit(() -> { }).get();
+        } catch (ExecutionException ex) {
+            throw new IOException(ex.getCause());
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while saving users", ex);
+        }
+    }
+
+    @Override
+    public void close() {
+        writer.shutdown();
+        try {
+            if (!writer.awaitTermination(30, TimeUnit.SECONDS)) {
+                plugin.getLogger().severe("Timed out while saving users");
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+        synchronized (connection) {
+            try {
+                connection.close();
+            } catch (SQLException ex) {
+                plugin.getLogger().log(Level.WARNING, "Failed to close the user database", ex);
+            }
+        }
+    }
+
+    private static Row toRow(ConfigurationSection node) {
+        YamlConfiguration copy = new YamlConfiguration();
+        copy.options().pathSeparator('/');
+        PermissionManager.copy(node, copy);
+        return new Row(node.getString("name"), node.getStringList("groups"), copy.saveToString());
+    }
+
+    private interface Work {
+        void run() throws SQLException;
+    }
+
+    // must hold the lock on the connection, either all of the work is written or none
+    private void transaction(Work work) throws SQLException {
+        connection.setAutoCommit(false);
+        try {
+            work.run();
+            connection.commit();
+        } catch (SQLException | RuntimeException ex) {
+            connection.rollback();
+            throw ex;
+        } finally {
+            connection.setAutoCommit(true);
+        }
+    }
+
+    // must hold the lock on the connection, and be part of a transaction
+    private void write(String key, Row row) throws SQLException {
+        try (PreparedStatement statement = connection.prepareStatement("DELETE FROM members WHERE key = ?")) {
+            statement.setString(1, key);
+            statement.executeUpdate();
+        }
+        if (row == null) {
+            try (PreparedStatement statement = connection.prepareStatement("DELETE FROM users WHERE key = ?")) {
+                statement.setString(1, key);
+                statement.executeUpdate();
+            }
+            return;
+        }
+        try (PreparedStatement statement = connection.prepareStatement("INSERT OR REPLACE INTO users (key, name, data) VALUES (?, ?, ?)")) {
+            statement.setString(1, key);
+            statement.setString(2, row.name);
+            statement.setString(3, row.data);
+            statement.executeUpdate();
+        }
+        try (PreparedStatement statement = connection.prepareStatement("INSERT OR IGNORE INTO members (grp, key) VALUES (?, ?)")) {
+            for (String group : row.groups) {
+                statement.setString(1, NodeIndex.key(group));
+                statement.setString(2, key);
+                statement.addBatch();
+            }
+            statement.executeBatch();
+        }
+    }
+
+    private String query(String sql, String parameter) {
+        synchronized (connection) {
+            try (PreparedStatement statement = connection.prepareStatement(sql)) {
+                statement.setString(1, parameter);
+                try (ResultSet rows = statement.executeQuery()) {
+                    return rows.next() ? rows.getString(1) : null;
+                }
+            } catch (SQLException ex) {
+                plugin.getLogger().log(Level.SEVERE, "Failed to read from the user database", ex);
+                return null;
+            }
+        }
+    }
+}
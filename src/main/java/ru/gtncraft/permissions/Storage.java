@@ -0,0 +1,72 @@
+package ru.gtncraft.permissions;
+
+import org.bukkit.configuration.ConfigurationSection;
+
+import java.util.Collection;
+import java.util.Map;
+
+/**
+ * Where users are kept. Groups and settings always stay in config.yml; users either stay there as well or are kept
+ * elsewhere and only loaded into the configuration tree while they're needed. A storage keeping them elsewhere is a
+ * {@link BulkStorage}, so they can be imported and exported without loading them.
+ */
+interface Storage {
+
+    /**
+     * @return True if users aren't in the configuration until they are loaded.
+     */
+    boolean isLazy();
+
+    /**
+     * Reads a user which isn't loaded. Can be called from any thread.
+     * @param key The key of the user, the UUID or the name for unconverted entries.
+     * @return The user, detached from the configuration, or null if there is none.
+     */
+    ConfigurationSection read(String key);
+
+    /**
+     * Finds the key of a user by the name last seen for them. Can be called from any thread.
+     * @param name The name.
+     * @return The key, or null if there is no such user.
+     */
+    String findKey(String name);
+
+    /**
+     * Pages through the users in a group, ordered by key. Can be called from any thread.
+     * @param group The group.
+     * @param offset The number of users to skip.
+     * @param limit The maximum number of users.
+     * @param converted True to only include users whose key is a UUID.
+     * @return The keys of the users and the names last seen for them.
+     */
+    Map<String, String> getMembers(String group, int offset, int limit, boolean converted);
+
+    /**
+     * Stores a user after it was changed in the configuration. Must be called on the main thread.
+     * @param key The key of the user.
+     * @param node The user, or null if it was removed.
+     */
+    void save(String key, ConfigurationSection node);
+
+    /**
+     * Stores a user after some of its entries were changed in the configuration. Must be called on the main thread.
+     * @param key The key of the user.
+     * @param node The user.
+     * @param paths The paths of the entries which were set or removed.
+     */
+    void save(String key, ConfigurationSection node, Collection<String> paths);
+
+    /**
+     * Stores a user which was moved to another key, such as an entry keyed by name converted to a UUID. Must be
+     * called on the main thread.
+     * @param from The old key.
+     * @param to The new key.
+     * @param node The user at the new key.
+     */
+    void rename(String from, String to, ConfigurationSection node);
+
+    /**
+     * Writes everything pending and releases the storage.
+     */
+    void close();
+}
@@ -0,0 +1,72 @@
+package ru.gtncraft.permissions;
+
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Gives every permission node a small number, so resolved permissions can be stored as arrays and every node string
+ * is kept only once. Numbers are never reused, there are only as many as nodes were ever read from the configuration.
+ */
+final class SymbolTable {
+
+    static final SymbolTable NODES = new SymbolTable();
+
+    private final ConcurrentMap<String, Integer> ids = new ConcurrentHashMap<>();
+    // written under the lock before the number is handed out, read without it
+    private volatile String[] names = new String[1024];
+    private int size = 0;
+
+    /**
+     * Gets the number of a node, which is the same for equal strings.
+     * @param node The node.
+     * @return The number.
+     */
+    int id(String node) {
+        Integer id = ids.get(node);
+        if (id != null) {
+            return id;
+        }
+        synchronized (this) {
+            id = ids.get(node);
+            if (id == null) {
+                String[] current = names;
+                if (size == current.length) {
+                    current = Arrays.copyOf(current, size * 2);
+                }
+                current[size] = node;
+                names = current;
+                id = size++;
+                ids.put(node, id);
+            }
+            return id;
+        }
+    }
+
+    /**
+     * Gets the number of a node without giving it one.
+     * @param node The node.
+     * @return The number, or -1 if the node doesn't have one.
+     */
+    int find(String node) {
+        Integer id = ids.get(node);
+        return id != null ? id : -1;
+    }
+
+    String name(int id) {
+        return names[id];
+    }
+
+    /**
+     * Gets the instance of a node which is shared by everything in the table.
+     * @param node The node.
+     * @return An equal string.
+     */
+    String intern(String node) {
+        return name(id(node));
+    }
+
+    int size() {
+        return ids.size();
+    }
+}
@@ -0,0 +1,161 @@
+package ru.gtncraft.permissions;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.bukkit.Bukkit;
+import org.bukkit.configuration.ConfigurationSection;
+import org.bukkit.configuration.InvalidConfigurationException;
+import org.bukkit.configuration.file.YamlConfiguration;
+
+import java.io.*;
+import java.util.UUID;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+
+/**
+ * Keeps servers which share their permissions up to date with each other. Every user or group changed here is sent
+ * to the other servers along with its new content, and a change received from another server replaces the user or
+ * group here and is refreshed like a local one, so only the players it affects are recalculated.
+ */
+final class Sync {
+
+    /**
+     * What a message is about.
+     */
+    enum Kind {
+        USER,
+        GROUP
+    }
+
+    private final Permissions plugin;
+    private final Transport transport;
+    private final ExecutorService sender = Executors.newSingleThreadExecutor(
+            new ThreadFactoryBuilder().setNameFormat("Permissions Sync").setDaemon(true).build()
+    );
+    // while a change from another server is applied, main thread only
+    private boolean receiving;
+
+    Sync(final Permissions plugin, final Transport transport) throws IOException {
+        this.plugin = plugin;
+        this.transport = transport;
+        transport.start(this::receive);
+    }
+
+    /**
+     * Tells the other servers about a user or group which was changed here. Must be called on the main thread.
+     * @param kind Whether it's a user or a group.
+     * @param key The key of the user or the name of the group.
+     * @param node The new content, or null if it was removed.
+     */
+    void changed(Kind kind, String key, ConfigurationSection node) {
+        if (receiving) {
+            // it came from another server
+            return;
+        }
+        byte[] message;
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(bytes);
+            out.writeByte(kind.ordinal());
+            Journal.writeString(out, key);
+            String content = "";
+            if (node != null) {
+                YamlConfiguration copy = new YamlConfiguration();
+                copy.options().pathSeparator('/');
+                PermissionManager.copy(node, copy);
+                content = copy.saveToString();
+            }
+            Journal.writeString(out, content);
+            message = bytes.toByteArray();
+        } catch (IOException ex) {
+            throw new UncheckedIOException(ex);
+        }
+        sender.execute(() -> {
+            try {
+                transport.send(message);
+            } catch (IOException ex) {
+                plugin.getLogger().log(Level.WARNING, "Failed to tell other servers about " + key, ex);
+            }
+        });
+    }
+
+    // on the thread of the transport
+    private void receive(byte[] message) {
+        Kind kind;
+        String key;
+        YamlConfiguration node = null;
+        try {
+            DataInputStream in = new DataInputStream(new ByteArrayInputStream(message));
+            kind = Kind.values()[in.readUnsignedByte()];
+            key = Journal.readString(in);
+            String content = Journal.readString(in);
+            if (!content.isEmpty()) {
+                node = new YamlConfiguration();
+                node.options().pathSeparator('/');
+                node.loadFromString(content);
+            }
+        } catch (IOException | InvalidConfigurationException | RuntimeException ex) {
+            plugin.getLogger().log(Level.WARNING, "Ignoring an invalid message from another server", ex);
+            return;
+        }
+        if (plugin.isEnabled()) {
+            ConfigurationSection value = node;
+            Bukkit.getScheduler().runTask(plugin, () -> apply(kind, key, value));
+        }
+    }
+
+    private void apply(Kind kind, String key, ConfigurationSection value) {
+        UUID uuid = null;
+        if (kind == Kind.USER) {
+            try {
+                uuid = UUID.fromString(key);
+            } catch (IllegalArgumentException ex) {
+                // an unconverted entry, it's converted when the player joins
+                return;
+            }
+        }
+        PermissionManager manager = plugin.getManager();
+        String path = (kind == Kind.USER ? "users/" : "groups/") + key;
+        ConfigurationSection node = manager.getNode(path);
+        if (value == null) {
+            if (node != null) {
+                node.getParent().set(node.getName(), null);
+            }
+        } else {
+            if (node == null) {
+                node = manager.createNode(path);
+            } else {
+                for (String child : node.getKeys(false)) {
+                    node.set(child, null);
+                }
+            }
+            PermissionManager.copy(value, node);
+        }
+        receiving = true;
+        try {
+            if (uuid != null) {
+                manager.refreshForPlayer(uuid);
+            } else {
+                manager.refreshForGroup(key);
+            }
+        } finally {
+            receiving = false;
+        }
+    }
+
+    /**
+     * Sends what's left to send and stops receiving.
+     */
+    void close() {
+        sender.shutdown();
+        try {
+            if (!sender.awaitTermination(5, TimeUnit.SECONDS)) {
+                plugin.getLogger().warning("Timed out while telling other servers about changes");
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+        transport.close();
+    }
+}
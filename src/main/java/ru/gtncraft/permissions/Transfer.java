@@ -0,0 +1,452 @@
+package ru.gtncraft.permissions;
+
+import com.google.common.collect.Iterators;
+import com.google.common.collect.Maps;
+import org.bukkit.Bukkit;
+import org.bukkit.ChatColor;
+import org.bukkit.command.CommandSender;
+import org.bukkit.configuration.ConfigurationSection;
+import org.bukkit.configuration.file.FileConfiguration;
+import org.bukkit.configuration.file.YamlConfiguration;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.sql.SQLException;
+import java.util.*;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+
+/**
+ * Imports and exports the users and groups as YAML files in the plugin folder, and moves the users from config.yml
+ * to users.db. Files are read and written one record at a time on a background thread, and a file is checked
+ * completely before anything is imported from it. Users are imported a chunk at a time, into config.yml one chunk
+ * per tick, so only a chunk of them is in memory at once.
+ */
+public final class Transfer {
+
+    // users put into config.yml per tick
+    private static final int CHUNK = 500;
+
+    private final Permissions plugin;
+    // one import or export at a time
+    private final AtomicBoolean running = new AtomicBoolean();
+
+    public Transfer(final Permissions plugin) {
+        this.plugin = plugin;
+    }
+
+    /**
+     * Imports the users and groups of a file, replacing those with the same name. Must be called on the main thread.
+     * If the import fails half way, the users imported until then are kept.
+     *
+     * @param sender Who to report the result to.
+     * @param name The name of the file in the plugin folder.
+     */
+    public void importFile(final CommandSender sender, final String name) {
+        File file = resolve(sender, name);
+        if (file == null) {
+            return;
+        }
+        if (!file.isFile()) {
+            sender.sendMessage(ChatColor.RED + "There is no file " + name + " in the plugin folder.");
+            return;
+        }
+        if (!running.compareAndSet(false, true)) {
+            sender.sendMessage(ChatColor.RED + "Another import or export is still running.");
+            return;
+        }
+        FileConfiguration config = plugin.getConfig();
+        BulkStorage storage = bulk(plugin.getManager().getStorage());
+        Bukkit.getScheduler().runTaskAsynchronously(plugin, () -> {
+            // anything but handing over to the main thread reports a failure and allows the next transfer
+            String failure = ChatColor.RED + "Failed to import " + name + ", see the console for details.";
+            try {
+                // groups are few, users are only counted while the file is checked
+                Map<String, Map<String, Object>> groups = new LinkedHashMap<>();
+                int count = 0;
+                try (YamlStream.Reader in = open(file)) {
+                    for (YamlStream.Record record; (record = in.next()) != null; ) {
+                        if (record.section.equals(YamlStream.GROUPS)) {
+                            groups.put(record.key, record.value);
+                        } else {
+                            count++;
+                        }
+                    }
+                }
+                try (YamlStream.Reader in = open(file)) {
+                    if (storage != null) {
+                        count = storage.importUsers(Iterators.transform(new UserRecords(in),
+                                record -> Maps.immutableEntry(record.key, section(record.value))));
+                    } else if (!importUsers(config, new UserRecords(in))) {
+                        failure = ChatColor.RED + "The configuration was reloaded while " + name + " was imported, "
+                                + "some of the users may be imported already. Run the command again.";
+                        return;
+                    }
+                }
+                int imported = count;
+                Bukkit.getScheduler().runTask(plugin, () -> finishImport(sender, file, groups, storage != null, imported));
+                failure = null;
+            } catch (YamlStream.InvalidRecordException ex) {
+                failure = ChatColor.RED + name + ": " + ex.getMessage();
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            } catch (ExecutionException ex) {
+                plugin.getLogger().log(Level.SEVERE, "Failed to import " + name, ex.getCause());
+            } catch (IOException | RuntimeException ex) {
+                plugin.getLogger().log(Level.SEVERE, "Failed to import " + name, ex);
+            } finally {
+                if (failure != null) {
+                    done(sender, failure);
+                }
+            }
+        });
+    }
+
+    /**
+     * Puts users into config.yml a chunk at a time, each on the main thread while the next one is read. Called on the
+     * import thread.
+     *
+     * @return False if the configuration was replaced since the import started, the rest isn't imported then.
+     */
+    private boolean importUsers(FileConfiguration config, Iterator<YamlStream.Record> users)
+            throws InterruptedException, ExecutionException {
+        while (users.hasNext()) {
+            List<YamlStream.Record> chunk = new ArrayList<>(CHUNK);
+            while (chunk.size() < CHUNK && users.hasNext()) {
+                chunk.add(users.next());
+            }
+            if (!Bukkit.getScheduler().callSyncMethod(plugin, () -> importChunk(config, chunk)).get()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private boolean importChunk(FileConfiguration config, List<YamlStream.Record> chunk) {
+        if (plugin.getConfig() != config) {
+            return false;
+        }
+        PermissionManager manager = plugin.getManager();
+        ConfigurationSection section = manager.createNode(YamlStream.USERS);
+        // users imported before are found by the manager, the ones of this chunk aren't yet
+        Map<String, String> imported = new LinkedHashMap<>();
+        for (YamlStream.Record record : chunk) {
+            String old = imported.put(NodeIndex.key(record.key), record.key);
+            if (old != null) {
+                section.set(old, null);
+            } else {
+                ConfigurationSection node = manager.getNode(YamlStream.USERS + "/" + record.key);
+                if (node != null) {
+                    section.set(node.getName(), null);
+                }
+            }
+            section.createSection(record.key, record.value);
+        }
+        // journals and reads the users, and recalculates those online
+        manager.commit(imported.values(), Collections.emptyList(), null);
+        return true;
+    }
+
+    /**
+     * @param stored True if the users were stored in another storage, false if they're in config.yml already.
+     */
+    private void finishImport(CommandSender sender, File file, Map<String, Map<String, Object>> groups,
+                              boolean stored, int count) {
+        ReloadSummary summary;
+        try {
+            FileConfiguration config = plugin.getConfig();
+            replace(config, YamlStream.GROUPS, groups.entrySet().iterator());
+            if (stored) {
+                // the online ones are loaded again by the reload
+                config.set(YamlStream.USERS, null);
+            }
+            PermissionManager manager = plugin.getManager();
+            manager.reload();
+            summary = manager.applyReload();
+            plugin.saveConfig();
+            // too many changes for the journal
+            plugin.compactConfig();
+        } finally {
+            running.set(false);
+        }
+        sender.sendMessage(ChatColor.GREEN + "Imported " + count + " users and " + groups.size() + " groups from "
+                + file.getName() + ", " + summary.getPlayers() + " players queued for recalculation.");
+    }
+
+    /**
+     * Exports the users and groups to a file, replacing it. Must be called on the main thread.
+     *
+     * @param sender Who to report the result to.
+     * @param name The name of the file in the plugin folder.
+     */
+    public void exportFile(final CommandSender sender, final String name) {
+        File file = resolve(sender, name);
+        if (file == null) {
+            return;
+        }
+        if (file.getName().equalsIgnoreCase("config.yml")) {
+            sender.sendMessage(ChatColor.RED + "Export to another file than config.yml.");
+            return;
+        }
+        if (!running.compareAndSet(false, true)) {
+            sender.sendMessage(ChatColor.RED + "Another import or export is still running.");
+            return;
+        }
+        // copy what's in the configuration while nothing can change it, users kept elsewhere are read as they're written
+        FileConfiguration config = plugin.getConfig();
+        BulkStorage storage = bulk(plugin.getManager().getStorage());
+        Map<String, Map<String, Object>> groups = records(config.getConfigurationSection(YamlStream.GROUPS));
+        Map<String, Map<String, Object>> users = storage == null ? records(config.getConfigurationSection(YamlStream.USERS)) : null;
+        Bukkit.getScheduler().runTaskAsynchronously(plugin, () -> {
+            Path target = file.toPath();
+            Path temp = target.resolveSibling(file.getName() + ".tmp");
+            AtomicInteger count = new AtomicInteger();
+            String result = ChatColor.RED + "Failed to export to " + name + ", see the console for details.";
+            try {
+                try (YamlStream.Writer out = new YamlStream.Writer(Files.newBufferedWriter(temp, StandardCharsets.UTF_8))) {
+                    out.section(YamlStream.GROUPS);
+                    for (Map.Entry<String, Map<String, Object>> group : groups.entrySet()) {
+                        out.record(group.getKey(), group.getValue());
+                    }
+                    out.section(YamlStream.USERS);
+                    if (users == null) {
+                        storage.forEachUser((key, node) -> {
+                            try {
+                                out.record(key, toMap(node));
+                            } catch (IOException ex) {
+                                throw new UncheckedIOException(ex);
+                            }
+                            count.incrementAndGet();
+                        });
+                    } else {
+                        for (Map.Entry<String, Map<String, Object>> user : users.entrySet()) {
+                            out.record(user.getKey(), user.getValue());
+                            count.incrementAndGet();
+                        }
+                    }
+                }
+                Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING);
+                result = ChatColor.GREEN + "Exported " + count + " users and " + groups.size() + " groups to "
+                        + name + ".";
+            } catch (IOException | RuntimeException ex) {
+                plugin.getLogger().log(Level.SEVERE, "Failed to export to " + name, ex);
+            } finally {
+                done(sender, result);
+            }
+        });
+    }
+
+    /**
+     * Moves the users from config.yml to users.db, where they are kept from now on. A backup of the configuration is
+     * written to config_users_backup.yml first. Must be called on the main thread.
+     *
+     * @param sender Who to report the result to.
+     */
+    public void migrate(final CommandSender sender) {
+        Storage old = plugin.getManager().getStorage();
+        if (old.isLazy()) {
+            sender.sendMessage(ChatColor.RED + "Users are already kept in users.db.");
+            return;
+        }
+        if (!running.compareAndSet(false, true)) {
+            sender.sendMessage(ChatColor.RED + "Another import or export is still running.");
+            return;
+        }
+        // copy the tree while nothing can change it, users saved from now on are stored again at the end
+        FileConfiguration config = plugin.getConfig();
+        YamlConfiguration copy = new YamlConfiguration();
+        copy.options().pathSeparator('/');
+        PermissionManager.copy(config, copy);
+        YamlStorage yaml = (YamlStorage) old;
+        yaml.track();
+        Bukkit.getScheduler().runTaskAsynchronously(plugin, () -> {
+            SqliteStorage storage = null;
+            try {
+                copy.save(new File(plugin.getDataFolder(), "config_users_backup.yml"));
+                storage = new SqliteStorage(plugin, new File(plugin.getDataFolder(), "users.db"));
+                Map<String, ConfigurationSection> users = new LinkedHashMap<>();
+                ConfigurationSection section = copy.getConfigurationSection(YamlStream.USERS);
+                if (section != null) {
+                    for (String key : section.getKeys(false)) {
+                        if (section.isConfigurationSection(key)) {
+                            users.put(key, section.getConfigurationSection(key));
+                        }
+                    }
+                }
+                int count = storage.importUsers(users.entrySet().iterator());
+                SqliteStorage result = storage;
+                Bukkit.getScheduler().runTask(plugin, () -> finishMigration(sender, config, yaml, result, count));
+            } catch (IOException | SQLException | RuntimeException ex) {
+                plugin.getLogger().log(Level.SEVERE, "Failed to migrate users", ex);
+                if (storage != null) {
+                    storage.close();
+                }
+                Bukkit.getScheduler().runTask(plugin, () -> {
+                    yaml.untrack();
+                    running.set(false);
+                    sender.sendMessage(ChatColor.RED + "Failed to migrate users, see the console for details.");
+                });
+            }
+        });
+    }
+
+    private void finishMigration(CommandSender sender, FileConfiguration config, YamlStorage old,
+                                 SqliteStorage storage, int count) {
+        try {
+            Set<String> changed = old.untrack();
+            PermissionManager manager = plugin.getManager();
+            if (plugin.getConfig() != config || manager.getStorage() != old) {
+                storage.close();
+                sender.sendMessage(ChatColor.RED + "The configuration was reloaded while the users were moved, "
+                        + "run the command again.");
+                return;
+            }
+            // users saved in the meantime are stored again as they are now
+            for (String key : changed) {
+                storage.save(key, manager.getNode(YamlStream.USERS + "/" + key));
+            }
+            plugin.useStorage(storage);
+        } finally {
+            running.set(false);
+        }
+        sender.sendMessage(ChatColor.GREEN + "Moved " + count + " users to users.db, a backup of the "
+                + "configuration was saved to config_users_backup.yml.");
+    }
+
+    // reports the result on the main thread, where another transfer can be started again
+    private void done(CommandSender sender, String message) {
+        Bukkit.getScheduler().runTask(plugin, () -> {
+            running.set(false);
+            sender.sendMessage(message);
+        });
+    }
+
+    private File resolve(CommandSender sender, String name) {
+        File folder = plugin.getDataFolder();
+        File file = new File(folder, name);
+        try {
+            if (file.getCanonicalFile().toPath().startsWith(folder.getCanonicalFile().toPath())) {
+                return file;
+            }
+        } catch (IOException ignore) {
+        }
+        sender.sendMessage(ChatColor.RED + "The file has to be in the plugin folder.");
+        return null;
+    }
+
+    // the storage if users are kept outside the configuration, or null
+    private static BulkStorage bulk(Storage storage) {
+        return storage instanceof BulkStorage ? (BulkStorage) storage : null;
+    }
+
+    private static YamlStream.Reader open(File file) throws IOException {
+        return new YamlStream.Reader(Files.newBufferedReader(file.toPath(), StandardCharsets.UTF_8));
+    }
+
+    // replaces the entries of a section which have the same key, ignoring case
+    private static void replace(FileConfiguration config, String name, Iterator<Map.Entry<String, Map<String, Object>>> records) {
+        ConfigurationSection section = config.getConfigurationSection(name);
+        if (section == null) {
+            section = config.createSection(name);
+        }
+        Map<String, String> existing = new HashMap<>();
+        for (String key : section.getKeys(false)) {
+            existing.putIfAbsent(NodeIndex.key(key), key);
+        }
+        while (records.hasNext()) {
+            Map.Entry<String, Map<String, Object>> record = records.next();
+            String old = existing.put(NodeIndex.key(record.getKey()), record.getKey());
+            if (old != null) {
+                section.set(old, null);
+            }
+            section.createSection(record.getKey(), record.getValue());
+        }
+    }
+
+    private static ConfigurationSection section(Map<String, Object> value) {
+        YamlConfiguration result = new YamlConfiguration();
+        result.options().pathSeparator('/');
+        for (Map.Entry<String, Object> entry : value.entrySet()) {
+            if (entry.getValue() instanceof Map) {
+                result.createSection(entry.getKey(), (Map<?, ?>) entry.getValue());
+            } else {
+                result.set(entry.getKey(), entry.getValue());
+            }
+        }
+        return result;
+    }
+
+    private static Map<String, Map<String, Object>> records(ConfigurationSection section) {
+        Map<String, Map<String, Object>> result = new LinkedHashMap<>();
+        if (section != null) {
+            for (String key : section.getKeys(false)) {
+                if (section.isConfigurationSection(key)) {
+                    result.put(key, toMap(section.getConfigurationSection(key)));
+                }
+            }
+        }
+        return result;
+    }
+
+    private static Map<String, Object> toMap(ConfigurationSection node) {
+        Map<String, Object> result = new LinkedHashMap<>();
+        for (String key : node.getKeys(false)) {
+            Object value = node.get(key);
+            if (value instanceof ConfigurationSection) {
+                value = toMap((ConfigurationSection) value);
+            } else if (value instanceof List) {
+                value = new ArrayList<>((List<?>) value);
+            }
+            result.put(key, value);
+        }
+        return result;
+    }
+
+    /**
+     * The users of a file which was already checked, read as they're needed.
+     */
+    private static final class UserRecords implements Iterator<YamlStream.Record> {
+
+        private final YamlStream.Reader in;
+        private YamlStream.Record next;
+
+        UserRecords(YamlStream.Reader in) {
+            this.in = in;
+        }
+
+        @Override
+        public boolean hasNext() {
+            try {
+                while (next == null) {
+                    YamlStream.Record record = in.next();
+                    if (record == null) {
+                        return false;
+                    }
+                    if (record.section.equals(YamlStream.USERS)) {
+                        next = record;
+                    }
+                }
+                return true;
+            } catch (YamlStream.InvalidRecordException ex) {
+                throw new UncheckedIOException(new IOException(ex.getMessage(), ex));
+            }
+        }
+
+        @Override
+        public YamlStream.Record next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            YamlStream.Record result = next;
+            next = null;
+            return result;
+        }
+    }
+}
@@ -0,0 +1,33 @@
+package ru.gtncraft.permissions;
+
+import java.io.IOException;
+import java.util.function.Consumer;
+
+/**
+ * Carries messages about changed users and groups between servers which share their permissions, see
+ * {@link Permissions#setTransport(Transport)}. The one which comes with the plugin exchanges files in a shared
+ * directory, set {@code sync-directory} in the configuration to use it.
+ */
+public interface Transport {
+
+    /**
+     * Starts receiving the messages of other servers.
+     *
+     * @param receiver Gets each message, on any thread. Messages sent by this server mustn't be passed to it.
+     * @throws IOException If the transport couldn't be started.
+     */
+    void start(Consumer<byte[]> receiver) throws IOException;
+
+    /**
+     * Sends a message to every other server. Called on a single background thread, in the order the changes were made.
+     *
+     * @param message The message.
+     * @throws IOException If the message couldn't be sent.
+     */
+    void send(byte[] message) throws IOException;
+
+    /**
+     * Stops receiving messages.
+     */
+    void close();
+}
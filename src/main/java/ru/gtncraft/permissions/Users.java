@@ -0,0 +1,119 @@
+package ru.gtncraft.permissions;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.NavigableSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+
+/**
+ * The users of a {@link Snapshot} with an index of their names and of the members of every group. Entries are
+ * replaced one at a time on the main thread and can be read from any thread.
+ */
+final class Users {
+
+    // by lower-cased key (the UUID, or the name for unconverted entries)
+    private final ConcurrentMap<String, Snapshot.Entry> entries = new ConcurrentHashMap<>();
+    // lower-cased name field to lower-cased key
+    private final ConcurrentMap<String, String> names = new ConcurrentHashMap<>();
+    // lower-cased group name to the lower-cased keys of its members, sorted so they can be paged through
+    private final ConcurrentMap<String, NavigableSet<String>> members = new ConcurrentHashMap<>();
+
+    Snapshot.Entry get(String key) {
+        return entries.get(NodeIndex.key(key));
+    }
+
+    /**
+     * Gets a user by the name field, or by the key for unconverted entries.
+     * @param name The name of the player.
+     * @return The user, or null.
+     */
+    Snapshot.Entry getByName(String name) {
+        String key = names.get(NodeIndex.key(name));
+        Snapshot.Entry entry = key != null ? entries.get(key) : null;
+        return entry != null ? entry : entries.get(NodeIndex.key(name));
+    }
+
+    Collection<Snapshot.Entry> values() {
+        return Collections.unmodifiableCollection(entries.values());
+    }
+
+    /**
+     * Gets the members of a group.
+     * @param group The name of the group.
+     * @return The lower-cased keys of the users in the group, in order. A live view.
+     */
+    NavigableSet<String> getMembers(String group) {
+        NavigableSet<String> result = members.get(NodeIndex.key(group));
+        return result != null ? Collections.unmodifiableNavigableSet(result) : Collections.emptyNavigableSet();
+    }
+
+    /**
+     * Adds a user unless there already is one with the same key.
+     * @param entry The user.
+     */
+    void add(Snapshot.Entry entry) {
+        if (entries.putIfAbsent(NodeIndex.key(entry.key), entry) == null) {
+            index(entry);
+        }
+    }
+
+    /**
+     * Adds or replaces a user.
+     * @param entry The user.
+     */
+    void put(Snapshot.Entry entry) {
+        String key = NodeIndex.key(entry.key);
+        Snapshot.Entry previous = entries.put(key, entry);
+        // index first, so readers never miss a user who stays in a group
+        index(entry);
+        if (previous != null) {
+            unindex(previous, entry);
+        }
+    }
+
+    void remove(String key) {
+        Snapshot.Entry previous = entries.remove(NodeIndex.key(key));
+        if (previous != null) {
+            unindex(previous, null);
+        }
+    }
+
+    private void index(Snapshot.Entry entry) {
+        String key = NodeIndex.key(entry.key);
+        if (entry.name != null) {
+            names.put(NodeIndex.key(entry.name), key);
+        }
+        for (String group : entry.groups) {
+            members.computeIfAbsent(NodeIndex.key(group), k -> new ConcurrentSkipListSet<>()).add(key);
+        }
+    }
+
+    // removes what only the previous entry of a user had, replacement is the new entry or null
+    private void unindex(Snapshot.Entry entry, Snapshot.Entry replacement) {
+        String key = NodeIndex.key(entry.key);
+        if (entry.name != null && (replacement == null || !entry.name.equalsIgnoreCase(replacement.name))) {
+            // the name may already belong to someone else
+            names.remove(NodeIndex.key(entry.name), key);
+        }
+        for (String group : entry.groups) {
+            if (replacement == null || !containsIgnoreCase(replacement.groups, group)) {
+                NavigableSet<String> set = members.get(NodeIndex.key(group));
+                if (set != null) {
+                    set.remove(key);
+                }
+            }
+        }
+    }
+
+    private static boolean containsIgnoreCase(List<String> list, String value) {
+        for (String element : list) {
+            if (element.equalsIgnoreCase(value)) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
@@ -0,0 +1,112 @@
+package ru.gtncraft.permissions;
+
+import org.bukkit.configuration.ConfigurationSection;
+import org.bukkit.plugin.Plugin;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Keeps users in config.yml along with everything else, every user is always loaded.
+ */
+final class YamlStorage implements Storage {
+
+    private final Plugin plugin;
+    private final Journal journal;
+    // keys of the users saved while they're being moved to another storage, or null
+    private Set<String> changed;
+
+    YamlStorage(final Plugin plugin) {
+        this(plugin, null);
+    }
+
+    /**
+     * @param journal The journal changes are recorded in, or null.
+     */
+    YamlStorage(final Plugin plugin, final Journal journal) {
+        this.plugin = plugin;
+        this.journal = journal;
+    }
+
+    /**
+     * Starts recording which users are saved, so those changed while they're copied elsewhere can be copied again.
+     */
+    void track() {
+        changed = new HashSet<>();
+    }
+
+    /**
+     * Stops recording which users are saved.
+     * @return The keys of the users saved since {@link #track()}, or null if nothing was recorded.
+     */
+    Set<String> untrack() {
+        Set<String> result = changed;
+        changed = null;
+        return result;
+    }
+
+    @Override
+    public boolean isLazy() {
+        return false;
+    }
+
+    @Override
+    public ConfigurationSection read(String key) {
+        return null;
+    }
+
+    @Override
+    public String findKey(String name) {
+        return null;
+    }
+
+    @Override
+    public Map<String, String> getMembers(String group, int offset, int limit, boolean converted) {
+        return Collections.emptyMap();
+    }
+
+    @Override
+    public void save(String key, ConfigurationSection node) {
+        if (changed != null) {
+            changed.add(key);
+        }
+        if (journal != null) {
+            journal.set(plugin.getConfig(), node != null ? node.getCurrentPath() : "users/" + key);
+        }
+        plugin.saveConfig();
+    }
+
+    @Override
+    public void save(String key, ConfigurationSection node, Collection<String> paths) {
+        if (changed != null) {
+            changed.add(key);
+        }
+        if (journal != null) {
+            for (String path : paths) {
+                journal.set(plugin.getConfig(), path);
+            }
+        }
+        plugin.saveConfig();
+    }
+
+    @Override
+    public void rename(String from, String to, ConfigurationSection node) {
+        if (changed != null) {
+            changed.add(from);
+            changed.add(to);
+        }
+        if (journal != null) {
+            journal.rename(from, to);
+            // the name is kept up to date along with the move
+            journal.set(plugin.getConfig(), node.getCurrentPath() + "/name");
+        }
+        plugin.saveConfig();
+    }
+
+    @Override
+    public void close() {
+    }
+}
@@ -0,0 +1,373 @@
+package ru.gtncraft.permissions;
+
+import org.yaml.snakeyaml.DumperOptions;
+import org.yaml.snakeyaml.Yaml;
+import org.yaml.snakeyaml.constructor.SafeConstructor;
+import org.yaml.snakeyaml.emitter.Emitter;
+import org.yaml.snakeyaml.error.MarkedYAMLException;
+import org.yaml.snakeyaml.error.YAMLException;
+import org.yaml.snakeyaml.events.*;
+import org.yaml.snakeyaml.nodes.NodeId;
+import org.yaml.snakeyaml.nodes.ScalarNode;
+import org.yaml.snakeyaml.nodes.Tag;
+import org.yaml.snakeyaml.resolver.Resolver;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.*;
+
+/**
+ * Reads and writes the users and groups of a configuration one record at a time, from the events of the YAML parser
+ * rather than a tree of the whole file, so files of any size can be processed in bounded memory.
+ */
+final class YamlStream {
+
+    static final String USERS = "users";
+    static final String GROUPS = "groups";
+
+    private YamlStream() {
+    }
+
+    /**
+     * A single user or group.
+     */
+    static final class Record {
+
+        final String section;
+        final String key;
+        final Map<String, Object> value;
+        final int line;
+
+        Record(String section, String key, Map<String, Object> value, int line) {
+            this.section = section;
+            this.key = key;
+            this.value = value;
+            this.line = line;
+        }
+    }
+
+    /**
+     * The first record which couldn't be read, or a syntax error.
+     */
+    static final class InvalidRecordException extends Exception {
+
+        InvalidRecordException(int line, String message) {
+            super("Line " + line + ": " + message);
+        }
+    }
+
+    /**
+     * Reads the records of the users and groups sections, skipping everything else.
+     */
+    static final class Reader implements Closeable {
+
+        private final java.io.Reader in;
+        private final Iterator<Event> events;
+        private final Resolver resolver = new Resolver();
+        // the section the next record belongs to, null at the top level
+        private String section;
+        private boolean started;
+        private boolean finished;
+
+        Reader(java.io.Reader in) {
+            this.in = in;
+            this.events = new Yaml().parse(in).iterator();
+        }
+
+        /**
+         * Reads the next record, checking that it's valid.
+         * @return The record, or null at the end of the file.
+         * @throws InvalidRecordException If the record is invalid or the file can't be parsed.
+         */
+        Record next() throws InvalidRecordException {
+            try {
+                return read();
+            } catch (MarkedYAMLException ex) {
+                throw new InvalidRecordException(ex.getProblemMark().getLine() + 1, ex.getProblem());
+            } catch (YAMLException ex) {
+                throw new InvalidRecordException(0, ex.getMessage());
+            }
+        }
+
+        private Record read() throws InvalidRecordException {
+            if (!started) {
+                started = true;
+                // the stream and the document, then the top level has to be a mapping
+                Event event = nextContent();
+                if (event.is(Event.ID.StreamEnd) || isEmpty(event)) {
+                    finished = true;
+                } else if (!event.is(Event.ID.MappingStart)) {
+                    throw new InvalidRecordException(line(event), "the file isn't a mapping");
+                }
+            }
+            while (!finished) {
+                Event event = events.next();
+                if (event.is(Event.ID.MappingEnd)) {
+                    if (section == null) {
+                        // only the first document is read
+                        finished = true;
+                    }
+                    section = null;
+                    continue;
+                }
+                if (!event.is(Event.ID.Scalar)) {
+                    throw new InvalidRecordException(line(event), "expected a key");
+                }
+                String key = ((ScalarEvent) event).getValue();
+                if (section != null) {
+                    return check(new Record(section, key, castMap(readValue(events.next())), line(event)));
+                }
+                Event value = events.next();
+                if ((key.equalsIgnoreCase(USERS) || key.equalsIgnoreCase(GROUPS)) && value.is(Event.ID.MappingStart)) {
+                    section = key.equalsIgnoreCase(USERS) ? USERS : GROUPS;
+                } else {
+                    skip(value);
+                }
+            }
+            return null;
+        }
+
+        private Event nextContent() {
+            while (true) {
+                Event event = events.next();
+                if (!event.is(Event.ID.StreamStart) && !event.is(Event.ID.DocumentStart)) {
+                    return event;
+                }
+            }
+        }
+
+        private boolean isEmpty(Event event) {
+            return event.is(Event.ID.Scalar) && toValue((ScalarEvent) event) == null;
+        }
+
+        private Object readValue(Event event) throws InvalidRecordException {
+            if (event.is(Event.ID.Scalar)) {
+                return toValue((ScalarEvent) event);
+            } else if (event.is(Event.ID.MappingStart)) {
+                Map<String, Object> result = new LinkedHashMap<>();
+                while (true) {
+                    Event key = events.next();
+                    if (key.is(Event.ID.MappingEnd)) {
+                        return result;
+                    }
+                    if (!key.is(Event.ID.Scalar)) {
+                        throw new InvalidRecordException(line(key), "keys have to be plain values");
+                    }
+                    result.put(((ScalarEvent) key).getValue(), readValue(events.next()));
+                }
+            } else if (event.is(Event.ID.SequenceStart)) {
+                List<Object> result = new ArrayList<>();
+                while (true) {
+                    Event item = events.next();
+                    if (item.is(Event.ID.SequenceEnd)) {
+                        return result;
+                    }
+                    result.add(readValue(item));
+                }
+            }
+            throw new InvalidRecordException(line(event), "aliases aren't supported");
+        }
+
+        // skips a value without keeping it
+        private void skip(Event event) {
+            int depth = 0;
+            while (true) {
+                if (event.is(Event.ID.MappingStart) || event.is(Event.ID.SequenceStart)) {
+                    depth++;
+                } else if (event.is(Event.ID.MappingEnd) || event.is(Event.ID.SequenceEnd)) {
+                    depth--;
+                }
+                if (depth == 0) {
+                    return;
+                }
+                event = events.next();
+            }
+        }
+
+        // booleans, numbers and nulls become what the configuration loader makes of them, anything else a string
+        private Object toValue(ScalarEvent event) {
+            String value = event.getValue();
+            Tag tag = event.getTag() != null
+                    ? new Tag(event.getTag())
+                    : resolver.resolve(NodeId.scalar, value, event.getImplicit().canOmitTagInPlainScalar());
+            if (tag.equals(Tag.BOOL) || tag.equals(Tag.INT) || tag.equals(Tag.FLOAT) || tag.equals(Tag.NULL)) {
+                return SCALARS.construct(tag, value);
+            }
+            return value;
+        }
+
+        @Override
+        public void close() throws IOException {
+            in.close();
+        }
+    }
+
+    /**
+     * Constructs plain values the way the configuration loader does, integers as an Integer, Long or BigInteger
+     * depending on their size and floats as a Double.
+     */
+    private static final class Scalars extends SafeConstructor {
+
+        Object construct(Tag tag, String value) {
+            return yamlConstructors.get(tag).construct(new ScalarNode(tag, value, null, null, null));
+        }
+    }
+
+    private static final Scalars SCALARS = new Scalars();
+
+    private static int line(Event event) {
+        return event.getStartMark() != null ? event.getStartMark().getLine() + 1 : 0;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static Map<String, Object> castMap(Object value) {
+        return value instanceof Map ? (Map<String, Object>) value : null;
+    }
+
+    private static Record check(Record record) throws InvalidRecordException {
+        String desc = (record.section.equals(USERS) ? "user " : "group ") + record.key;
+        if (record.value == null) {
+            throw new InvalidRecordException(record.line, desc + " isn't a mapping");
+        }
+        String list = record.section.equals(USERS) ? "groups" : "inheritance";
+        for (Map.Entry<String, Object> entry : record.value.entrySet()) {
+            String key = entry.getKey();
+            Object item = entry.getValue();
+            if (key.equalsIgnoreCase(list)) {
+                if (!(item instanceof List) || !allScalars((List<?>) item)) {
+                    throw new InvalidRecordException(record.line, desc + ": " + key + " isn't a list of names");
+                }
+            } else if (key.equalsIgnoreCase("permissions")) {
+                checkPermissions(record, desc, key, item);
+            } else if (key.equalsIgnoreCase("worlds")) {
+                if (!(item instanceof Map)) {
+                    throw new InvalidRecordException(record.line, desc + ": " + key + " isn't a mapping");
+                }
+                for (Map.Entry<?, ?> world : ((Map<?, ?>) item).entrySet()) {
+                    checkPermissions(record, desc, key + "/" + world.getKey(), world.getValue());
+                }
+            } else if (item instanceof Map || item instanceof List) {
+                if (key.equalsIgnoreCase("name") || key.equalsIgnoreCase("prefix")) {
+                    throw new InvalidRecordException(record.line, desc + ": " + key + " isn't a plain value");
+                }
+            }
+        }
+        return record;
+    }
+
+    private static void checkPermissions(Record record, String desc, String path, Object value) throws InvalidRecordException {
+        if (!(value instanceof Map)) {
+            throw new InvalidRecordException(record.line, desc + ": " + path + " isn't a mapping");
+        }
+        // nested nodes are fixed up when they're read, so only the leaves have to be true or false
+        for (Map.Entry<?, ?> entry : ((Map<?, ?>) value).entrySet()) {
+            if (entry.getValue() instanceof Map) {
+                checkPermissions(record, desc, path + "/" + entry.getKey(), entry.getValue());
+            } else if (!(entry.getValue() instanceof Boolean)) {
+                throw new InvalidRecordException(record.line, desc + ": " + path + "/" + entry.getKey()
+                        + " isn't true or false");
+            }
+        }
+    }
+
+    private static boolean allScalars(List<?> list) {
+        for (Object item : list) {
+            if (item == null || item instanceof Map || item instanceof List) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Writes the users and groups sections one record at a time. The sections are written in the order they're
+     * started in.
+     */
+    static final class Writer implements Closeable {
+
+        private final java.io.Writer out;
+        private final Emitter emitter;
+        private final Resolver resolver = new Resolver();
+        private boolean inSection;
+
+        Writer(java.io.Writer out) throws IOException {
+            this.out = out;
+            DumperOptions options = new DumperOptions();
+            options.setDefaultFlowStyle(DumperOptions.FlowStyle.BLOCK);
+            options.setIndent(4);
+            emitter = new Emitter(out, options);
+            emitter.emit(new StreamStartEvent(null, null));
+            emitter.emit(new DocumentStartEvent(null, null, false, null, null));
+            emitter.emit(new MappingStartEvent(null, null, true, null, null, false));
+        }
+
+        /**
+         * Starts a section, ending the one before.
+         * @param name The name of the section.
+         */
+        void section(String name) throws IOException {
+            endSection();
+            scalar(name);
+            emitter.emit(new MappingStartEvent(null, null, true, null, null, false));
+            inSection = true;
+        }
+
+        /**
+         * Writes a record into the current section.
+         * @param key The key of the user or group.
+         * @param value The record, made of maps, lists, strings, numbers and booleans.
+         */
+        void record(String key, Map<String, Object> value) throws IOException {
+            scalar(key);
+            value(value);
+        }
+
+        private void endSection() throws IOException {
+            if (inSection) {
+                emitter.emit(new MappingEndEvent(null, null));
+                inSection = false;
+            }
+        }
+
+        private void value(Object value) throws IOException {
+            if (value instanceof Map) {
+                emitter.emit(new MappingStartEvent(null, null, true, null, null, false));
+                for (Map.Entry<?, ?> entry : ((Map<?, ?>) value).entrySet()) {
+                    scalar(String.valueOf(entry.getKey()));
+                    value(entry.getValue());
+                }
+                emitter.emit(new MappingEndEvent(null, null));
+            } else if (value instanceof List) {
+                emitter.emit(new SequenceStartEvent(null, null, true, null, null, false));
+                for (Object item : (List<?>) value) {
+                    value(item);
+                }
+                emitter.emit(new SequenceEndEvent(null, null));
+            } else if (value == null) {
+                emitter.emit(new ScalarEvent(null, null, new ImplicitTuple(true, false), "~", null, null, null));
+            } else if (value instanceof Boolean || value instanceof Number) {
+                emitter.emit(new ScalarEvent(null, null, new ImplicitTuple(true, false), value.toString(), null, null, null));
+            } else {
+                scalar(value.toString());
+            }
+        }
+
+        private void scalar(String value) throws IOException {
+            // a string which would be read as something else is quoted
+            boolean plain = resolver.resolve(NodeId.scalar, value, true).equals(Tag.STR);
+            emitter.emit(new ScalarEvent(null, null, new ImplicitTuple(plain, true), value, null, null, null));
+        }
+
+        @Override
+        public void close() throws IOException {
+            try {
+                endSection();
+                emitter.emit(new MappingEndEvent(null, null));
+                emitter.emit(new DocumentEndEvent(null, null, false));
+                emitter.emit(new StreamEndEvent(null, null));
+            } finally {
+                out.close();
+            }
+        }
+    }
+}
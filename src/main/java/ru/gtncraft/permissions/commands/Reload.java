@@ -7,21 +7,29 @@ import org.bukkit.command.CommandExecutor;
 import org.bukkit.command.CommandSender;
 import org.bukkit.command.TabCompleter;
 import org.bukkit.util.StringUtil;
+import ru.gtncraft.permissions.MemoryUsage;
+import ru.gtncraft.permissions.Metrics;
 import ru.gtncraft.permissions.Permissions;
+import ru.gtncraft.permissions.ReloadSummary;
+import ru.gtncraft.permissions.Transfer;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.List;
+import java.util.Locale;
 
 final public class Reload implements CommandExecutor, TabCompleter {
     
     private final Permissions plugin;
-    private final List<String> ROOT_SUBS = ImmutableList.of("reload");
+    private final Transfer transfer;
+    private final List<String> ROOT_SUBS = ImmutableList.of("reload", "memory", "stats", "migrate", "import", "export");
 
     public Reload(final Permissions plugin) {
         plugin.getCommand("permissions").setExecutor(this);
         plugin.getCommand("permissions").setPermission("permissions.reload");
         this.plugin = plugin;
+        this.transfer = new Transfer(plugin);
     }
 
     @Override
@@ -36,10 +44,55 @@ final public class Reload implements CommandExecutor, TabCompleter {
                     plugin.configLoadError = false;
                     sender.sendMessage(ChatColor.RED + "Your configuration is invalid, see the console for details.");
                 } else {
-                    plugin.getManager().refreshPermissions();
-                    sender.sendMessage(ChatColor.GREEN + "Configuration reloaded.");
+                    ReloadSummary summary = plugin.getManager().applyReload();
+                    sender.sendMessage(ChatColor.GREEN + "Configuration reloaded, " + summary.getPlayers()
+                            + " players queued for recalculation.");
+                    report(sender, "Groups", summary.getGroups());
+                    report(sender, "Prefixes", summary.getPrefixes());
+                    report(sender, "Worlds", summary.getWorlds());
+                    if (summary.getUsers() > 0) {
+                        sender.sendMessage(ChatColor.GREEN + "Users: " + ChatColor.WHITE + summary.getUsers());
+                    }
+                    if (summary.isFormatChanged()) {
+                        sender.sendMessage(ChatColor.GREEN + "Chat format changed.");
+                    }
                 }
                 return true;
+            case "memory":
+                MemoryUsage usage = plugin.getManager().getMemoryUsage();
+                sender.sendMessage(ChatColor.GREEN + "Interned nodes: " + ChatColor.WHITE + usage.getNodes());
+                sender.sendMessage(ChatColor.GREEN + "Resolved permissions: " + ChatColor.WHITE + usage.getSets()
+                        + " layers and sets cached for groups and " + usage.getPlayers() + " players");
+                sender.sendMessage(ChatColor.GREEN + "Estimated size: " + ChatColor.WHITE + kib(usage.getSize()) + " KiB");
+                sender.sendMessage(ChatColor.GREEN + "Heap: " + ChatColor.WHITE + kib(usage.getHeapUsed()) / 1024
+                        + " of " + kib(usage.getHeapMax()) / 1024 + " MiB used");
+                return true;
+            case "stats":
+                Metrics metrics = plugin.getManager().getMetrics();
+                if (split.length > 1 && split[1].equals("reset")) {
+                    metrics.reset();
+                    sender.sendMessage(ChatColor.GREEN + "Statistics reset.");
+                    return true;
+                }
+                stats(sender, metrics);
+                sender.sendMessage(ChatColor.GREEN + "Queued recalculations: " + ChatColor.WHITE
+                        + plugin.getManager().getQueuedRecalculations());
+                return true;
+            case "migrate":
+                transfer.migrate(sender);
+                return true;
+            case "import":
+                if (split.length < 2) {
+                    return false;
+                }
+                transfer.importFile(sender, split[1]);
+                return true;
+            case "export":
+                if (split.length < 2) {
+                    return false;
+                }
+                transfer.exportFile(sender, split[1]);
+                return true;
         }
         return false;
     }
@@ -49,9 +102,61 @@ final public class Reload implements CommandExecutor, TabCompleter {
         if (args.length <= 1) {
             return partial(args[0], ROOT_SUBS);
         }
+        if (args.length == 2 && args[0].equals("stats")) {
+            return partial(args[1], ImmutableList.of("reset"));
+        }
+        if (args.length == 2 && (args[0].equals("import") || args[0].equals("export"))) {
+            String[] files = plugin.getDataFolder().list((dir, name) -> name.endsWith(".yml"));
+            return partial(args[1], files != null ? Arrays.asList(files) : ImmutableList.of());
+        }
         return ImmutableList.of();
     }
 
+    void report(CommandSender sender, String title, Collection<String> changed) {
+        if (!changed.isEmpty()) {
+            sender.sendMessage(ChatColor.GREEN + title + ": " + ChatColor.WHITE + String.join(", ", changed));
+        }
+    }
+
+    void stats(CommandSender sender, Metrics metrics) {
+        if (!metrics.isEnabled()) {
+            sender.sendMessage(ChatColor.GRAY + "Timings are disabled, set metrics: true in config.yml to record them.");
+        }
+        for (Metrics.Operation operation : Metrics.Operation.values()) {
+            long count = metrics.getCount(operation);
+            if (count > 0) {
+                sender.sendMessage(ChatColor.GREEN + name(operation) + ": " + ChatColor.WHITE + count + "x, mean "
+                        + ms(metrics.getTotalTime(operation) / count)
+                        + ", p50 " + ms(metrics.getPercentile(operation, 50))
+                        + ", p99 " + ms(metrics.getPercentile(operation, 99))
+                        + ", max " + ms(metrics.getMaxTime(operation)));
+            }
+        }
+        for (Metrics.Cache cache : Metrics.Cache.values()) {
+            long total = metrics.getHits(cache) + metrics.getMisses(cache);
+            if (total > 0) {
+                sender.sendMessage(ChatColor.GREEN + name(cache) + " cache: " + ChatColor.WHITE
+                        + String.format("%.1f%% of %d hit", metrics.getHitRate(cache) * 100, total));
+            }
+        }
+        sender.sendMessage(ChatColor.GREEN + "Recalculations: " + ChatColor.WHITE
+                + metrics.getCount(Metrics.Counter.FULL_RECALCULATIONS) + " full, "
+                + metrics.getCount(Metrics.Counter.PARTIAL_RECALCULATIONS) + " partial, "
+                + metrics.getCount(Metrics.Counter.SKIPPED_RECALCULATIONS) + " skipped");
+    }
+
+    static String name(Enum<?> value) {
+        return value.name().charAt(0) + value.name().substring(1).toLowerCase(Locale.ROOT).replace('_', ' ');
+    }
+
+    static String ms(long nanos) {
+        return String.format("%.2fms", nanos / 1e6);
+    }
+
+    static long kib(long bytes) {
+        return bytes / 1024;
+    }
+
     List<String> partial(String token, Collection<String> from) {
         return StringUtil.copyPartialMatches(token, from, new ArrayList<>(from.size()));
     }
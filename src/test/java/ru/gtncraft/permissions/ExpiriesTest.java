@@ -0,0 +1,115 @@
+package ru.gtncraft.permissions;
+
+import com.google.common.collect.ImmutableMap;
+import org.bukkit.configuration.ConfigurationSection;
+import org.bukkit.configuration.file.YamlConfiguration;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.util.*;
+
+import static org.junit.Assert.*;
+
+public class ExpiriesTest {
+
+    private static final String ALICE = new UUID(0, 1).toString();
+
+    private YamlConfiguration config;
+
+    @Before
+    public void setUp() {
+        Stubs.install();
+        config = Stubs.config();
+    }
+
+    @Test
+    public void onlyDueEntriesExpire() {
+        long now = System.currentTimeMillis();
+        ConfigurationSection node = config.createSection("users/" + ALICE);
+        node.set("groups", Arrays.asList("default", "vip", "mod"));
+        node.set("expires/groups/vip", now - 1000);
+        node.set("expires/groups/mod", now + 3600000);
+        PermissionManager manager = new PermissionManager(Stubs.plugin(() -> config));
+
+        manager.getExpiries().run();
+        assertEquals(Arrays.asList("default", "mod"), node.getStringList("groups"));
+        assertEquals(now + 3600000, node.get("expires/groups/mod"));
+        assertNull(node.get("expires/groups/vip"));
+    }
+
+    @Test
+    public void theEarliestExpireFirstALimitedNumberPerTick() {
+        long now = System.currentTimeMillis();
+        ConfigurationSection node = config.createSection("groups/vip");
+        // queued in the reverse of the order they expire in
+        for (int i = 59; i >= 0; i--) {
+            node.set("permissions/node" + i, true);
+            node.set("expires/permissions/node" + i, now - 100000 + i);
+        }
+        PermissionManager manager = new PermissionManager(Stubs.plugin(() -> config));
+
+        manager.getExpiries().run();
+        Set<String> left = node.getConfigurationSection("permissions").getKeys(false);
+        assertEquals(10, left.size());
+        for (int i = 50; i < 60; i++) {
+            assertTrue(left.contains("node" + i));
+        }
+        manager.getExpiries().run();
+        assertTrue(node.getConfigurationSection("permissions").getKeys(false).isEmpty());
+        assertNull(node.get(Expiries.SECTION));
+    }
+
+    @Test
+    public void anEntryGivenAnotherTimeIsntRemovedAtTheOldOne() {
+        long now = System.currentTimeMillis();
+        ConfigurationSection node = config.createSection("users/" + ALICE);
+        node.set("groups", Arrays.asList("default", "vip"));
+        node.set("expires/groups/vip", now - 1000);
+        PermissionManager manager = new PermissionManager(Stubs.plugin(() -> config));
+
+        manager.batch().addUserToGroup(UUID.fromString(ALICE), "vip", now + 3600000).commit();
+        manager.getExpiries().run();
+        assertEquals(Arrays.asList("default", "vip"), node.getStringList("groups"));
+        assertEquals(now + 3600000, node.get("expires/groups/vip"));
+
+        manager.batch().addUserToGroup(UUID.fromString(ALICE), "vip", now - 500).commit();
+        manager.getExpiries().run();
+        assertEquals(Collections.singletonList("default"), node.getStringList("groups"));
+    }
+
+    /**
+     * A user exported with temporary entries and imported again still loses them once they expire.
+     */
+    @Test
+    public void importedEntriesExpire() throws Exception {
+        long expired = System.currentTimeMillis() - 1000;
+        Map<String, Object> user = new LinkedHashMap<>();
+        user.put("name", "alice");
+        user.put("groups", new ArrayList<>(Arrays.asList("default", "vip")));
+        user.put("permissions", ImmutableMap.of("essentials.fly", true));
+        user.put(Expiries.SECTION, ImmutableMap.of(
+                "groups", ImmutableMap.of("vip", expired),
+                "permissions", ImmutableMap.of("essentials.fly", expired)));
+        StringWriter file = new StringWriter();
+        try (YamlStream.Writer out = new YamlStream.Writer(file)) {
+            out.section(YamlStream.USERS);
+            out.record(ALICE, user);
+        }
+        try (YamlStream.Reader in = new YamlStream.Reader(new StringReader(file.toString()))) {
+            YamlStream.Record record = in.next();
+            config.createSection(YamlStream.USERS + "/" + record.key, record.value);
+            assertNull(in.next());
+        }
+        assertEquals(expired, config.get("users/" + ALICE + "/expires/groups/vip"));
+
+        PermissionManager manager = new PermissionManager(Stubs.plugin(() -> config));
+        manager.getExpiries().run();
+
+        ConfigurationSection node = config.getConfigurationSection("users/" + ALICE);
+        assertEquals(Collections.singletonList("default"), node.getStringList("groups"));
+        assertNull(node.get("permissions/essentials.fly"));
+        assertNull(node.get(Expiries.SECTION));
+    }
+}
@@ -0,0 +1,215 @@
+package ru.gtncraft.permissions;
+
+import com.google.common.hash.HashCode;
+import org.bukkit.configuration.file.YamlConfiguration;
+import org.bukkit.plugin.Plugin;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.UUID;
+import java.util.logging.Logger;
+
+import static org.junit.Assert.*;
+
+public class JournalTest {
+
+    // the contents config.yml is written with, only their hashes matter
+    private static final HashCode LOADED = file("loaded");
+    private static final HashCode WRITTEN = file("written");
+    private static final HashCode EDITED = file("edited");
+    private static final String ALICE = new UUID(0, 1).toString();
+
+    @Rule
+    public final TemporaryFolder temp = new TemporaryFolder();
+
+    private final Logger logger = Logger.getLogger("Permissions");
+    private File folder;
+    private Journal journal;
+    private YamlConfiguration config;
+
+    @Before
+    public void setUp() throws IOException {
+        folder = new File(temp.getRoot(), "journal");
+        journal = new Journal(folder, logger);
+        // like the first start, nothing is based on the file yet
+        assertEquals(-1, journal.replay(Stubs.config(), LOADED));
+        assertEquals(0, journal.discard(LOADED));
+        config = Stubs.config();
+        config.set("groups/default/permissions/permissions.build", false);
+    }
+
+    @After
+    public void tearDown() {
+        journal.close();
+    }
+
+    @Test
+    public void changesAreReplayedInOrder() throws IOException {
+        config.set("groups/vip/permissions/essentials.fly", true);
+        journal.set(config, "groups/vip");
+        config.set("users/alice/groups", Collections.singletonList("vip"));
+        journal.set(config, "users/alice");
+        journal.rename("alice", "069a79f4-44e9-4726-a5be-fca90e38aaf5");
+        config.set("groups/default", null);
+        journal.set(config, "groups/default");
+
+        YamlConfiguration loaded = reopen();
+        assertEquals(4, journal.replay(loaded, LOADED));
+        assertEquals(true, loaded.get("groups/vip/permissions/essentials.fly"));
+        assertEquals(Collections.singletonList("vip"),
+                loaded.getStringList("users/069a79f4-44e9-4726-a5be-fca90e38aaf5/groups"));
+        assertNull(loaded.get("users/alice"));
+        assertNull(loaded.get("groups/default"));
+    }
+
+    @Test
+    public void appendingLeavesTheSyncToTheWriter() throws IOException {
+        journal.sync();
+        assertFalse(journal.needsSync());
+        setPrefix("D");
+        assertTrue(journal.needsSync());
+        journal.sync();
+        assertFalse(journal.needsSync());
+        // flushed when appended, so it's there even before the sync
+        assertEquals(1, journal.replay(Stubs.config(), LOADED));
+    }
+
+    @Test
+    public void aCrashWhileWritingReplaysEverything() throws IOException {
+        setPrefix("A");
+        long last = journal.rotate();
+        journal.setBase(last + 1, WRITTEN);
+        setPrefix("B");
+
+        // the new file never replaced the one loaded
+        YamlConfiguration loaded = reopen();
+        assertEquals(2, journal.replay(loaded, LOADED));
+        assertEquals("B", loaded.getString("groups/default/prefix"));
+    }
+
+    @Test
+    public void aCrashAfterWritingReplaysTheChangesSince() throws IOException {
+        setPrefix("A");
+        long last = journal.rotate();
+        journal.setBase(last + 1, WRITTEN);
+        setPrefix("B");
+
+        // the file was replaced, but the segments it holds weren't deleted yet
+        YamlConfiguration loaded = reopen();
+        assertEquals(1, journal.replay(loaded, WRITTEN));
+        assertEquals("B", loaded.getString("groups/default/prefix"));
+    }
+
+    @Test
+    public void compactionDeletesTheSegmentsWritten() throws IOException {
+        setPrefix("A");
+        long last = journal.rotate();
+        journal.setBase(last + 1, WRITTEN);
+        setPrefix("B");
+        // the segment rotated out is synced and closed before it's deleted, or deleted without a sync
+        assertTrue(journal.needsSync());
+        journal.compacted(last);
+        journal.sync();
+        assertFalse(journal.isEmpty());
+
+        YamlConfiguration loaded = reopen();
+        assertEquals(1, journal.replay(loaded, WRITTEN));
+        assertEquals("B", loaded.getString("groups/default/prefix"));
+        assertEquals(-1, journal.replay(Stubs.config(), LOADED));
+    }
+
+    @Test
+    public void anEditedFileSetsTheJournalAside() throws IOException {
+        setPrefix("A");
+        setPrefix("B");
+
+        YamlConfiguration loaded = reopen();
+        assertEquals(-1, journal.replay(loaded, EDITED));
+        assertNull(loaded.get("groups/default/prefix"));
+        assertEquals(2, journal.discard(EDITED));
+        assertTrue(journal.isEmpty());
+        assertEquals(1, folder.list((dir, name) -> name.endsWith(".bak")).length);
+
+        // changes from now on are based on the edited file
+        setPrefix("C");
+        loaded = reopen();
+        assertEquals(1, journal.replay(loaded, EDITED));
+        assertEquals("C", loaded.getString("groups/default/prefix"));
+    }
+
+    @Test
+    public void aTornRecordEndsTheReplay() throws IOException {
+        for (String prefix : Arrays.asList("A", "B", "C")) {
+            setPrefix(prefix);
+        }
+        journal.close();
+        File[] segments = folder.listFiles();
+        assertEquals(1, segments.length);
+        try (RandomAccessFile file = new RandomAccessFile(segments[0], "rw")) {
+            file.setLength(file.length() - 3);
+        }
+
+        YamlConfiguration loaded = reopen();
+        assertEquals(2, journal.replay(loaded, LOADED));
+        assertEquals("B", loaded.getString("groups/default/prefix"));
+    }
+
+    @Test
+    public void aBatchJournalsOnlyWhatItChanged() throws IOException {
+        Stubs.install();
+        YamlConfiguration before = Stubs.config();
+        for (YamlConfiguration target : Arrays.asList(config, before)) {
+            for (int i = 0; i < 100; i++) {
+                target.set("groups/vip/permissions/node" + i, true);
+            }
+            target.set("users/" + ALICE + "/groups", Arrays.asList("default", "vip"));
+            target.set("users/" + ALICE + "/expires/groups/vip", 1767225600000L);
+        }
+        Plugin plugin = Stubs.plugin(() -> config);
+        PermissionManager manager = new PermissionManager(plugin, new Metrics(false), new YamlStorage(plugin, journal),
+                journal);
+
+        long size = journal.size();
+        manager.batch()
+               .setGroupPermission("vip", null, "essentials.fly", true)
+               .setPrefix("vip", "VIP")
+               .removeUserFromGroup(UUID.fromString(ALICE), "vip")
+               .commit();
+        // far less than the hundred permissions of the group
+        assertTrue(journal.size() - size < 400);
+
+        reopen();
+        // the permission, the prefix, the groups of the user and the section of the times left empty
+        assertEquals(4, journal.replay(before, LOADED));
+        assertEquals(true, before.get("groups/vip/permissions/essentials.fly"));
+        assertEquals(true, before.get("groups/vip/permissions/node99"));
+        assertEquals("VIP", before.getString("groups/vip/prefix"));
+        assertEquals(Collections.singletonList("default"), before.getStringList("users/" + ALICE + "/groups"));
+        assertNull(before.get("users/" + ALICE + "/expires"));
+    }
+
+    private void setPrefix(String prefix) {
+        config.set("groups/default/prefix", prefix);
+        journal.set(config, "groups/default/prefix");
+    }
+
+    // as if the server was started again on what's on disk
+    private YamlConfiguration reopen() throws IOException {
+        journal.close();
+        journal = new Journal(folder, logger);
+        return Stubs.config();
+    }
+
+    private static HashCode file(String content) {
+        return ConfigWriter.hash(content.getBytes(StandardCharsets.UTF_8));
+    }
+}
@@ -0,0 +1,74 @@
+package ru.gtncraft.permissions;
+
+import com.google.common.collect.ImmutableMap;
+import org.junit.Test;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+public class PermissionTrieTest {
+
+    @Test
+    public void exactNodes() {
+        PermissionTrie trie = PermissionTrie.compile(ImmutableMap.of("essentials.fly", true, "essentials.god", false));
+        assertEquals(true, trie.get("essentials.fly"));
+        assertEquals(false, trie.get("essentials.god"));
+        assertNull(trie.get("essentials"));
+        assertNull(trie.get("essentials.fly.other"));
+        assertNull(trie.get("worldedit.wand"));
+    }
+
+    @Test
+    public void nodesAreCaseInsensitive() {
+        PermissionTrie trie = PermissionTrie.compile(ImmutableMap.of("Essentials.Fly", true));
+        assertEquals(true, trie.get("essentials.fly"));
+        assertEquals(true, trie.get("ESSENTIALS.FLY"));
+    }
+
+    @Test
+    public void aWildcardCoversTheNodesBelowIt() {
+        PermissionTrie trie = PermissionTrie.compile(ImmutableMap.of("essentials.*", true));
+        assertEquals(true, trie.get("essentials.fly"));
+        assertEquals(true, trie.get("essentials.warp.spawn"));
+        assertNull(trie.get("essentials"));
+        assertNull(trie.get("essentialsx.fly"));
+    }
+
+    @Test
+    public void theRootWildcardCoversEverything() {
+        PermissionTrie trie = PermissionTrie.compile(ImmutableMap.of("*", false));
+        assertEquals(false, trie.get("essentials"));
+        assertEquals(false, trie.get("essentials.fly"));
+    }
+
+    @Test
+    public void theLastEntryCoveringANodeWins() {
+        Map<String, Boolean> perms = new LinkedHashMap<>();
+        perms.put("essentials.fly", false);
+        perms.put("essentials.*", true);
+        perms.put("essentials.warp.*", false);
+        perms.put("essentials.warp.spawn", true);
+        PermissionTrie trie = PermissionTrie.compile(perms);
+        assertEquals(true, trie.get("essentials.fly"));
+        assertEquals(true, trie.get("essentials.home"));
+        assertEquals(false, trie.get("essentials.warp.shop"));
+        assertEquals(true, trie.get("essentials.warp.spawn"));
+
+        perms = new LinkedHashMap<>();
+        perms.put("*", true);
+        perms.put("essentials.fly", false);
+        perms.put("essentials.*", true);
+        trie = PermissionTrie.compile(perms);
+        assertEquals(true, trie.get("essentials.fly"));
+        assertEquals(true, trie.get("worldedit.wand"));
+    }
+
+    @Test
+    public void nothingIsCoveredByNothing() {
+        assertSame(PermissionTrie.EMPTY, PermissionTrie.compile(Collections.emptyMap()));
+        assertNull(PermissionTrie.EMPTY.get("essentials.fly"));
+    }
+}
@@ -0,0 +1,119 @@
+package ru.gtncraft.permissions;
+
+import org.bukkit.configuration.ConfigurationSection;
+import org.bukkit.configuration.file.YamlConfiguration;
+import org.bukkit.entity.Player;
+import org.bukkit.plugin.Plugin;
+import org.junit.Test;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.Assert.assertNull;
+
+/**
+ * Reloads the configuration over and over while other threads read from the manager. The two configurations
+ * alternated between share no groups, so a reader which got a user from one snapshot and the groups from another
+ * would find the user's group missing.
+ */
+public class SnapshotPublicationTest {
+
+    private static final int READERS = 4;
+    private static final int RELOADS = 2000;
+    private static final UUID ALICE = new UUID(0, 1);
+
+    private final YamlConfiguration[] configs = {config("a", true), config("b", false)};
+    // only read and replaced on the thread reloading
+    private YamlConfiguration current = configs[0];
+
+    @Test
+    public void readersSeeWholeSnapshots() throws Exception {
+        Stubs.install();
+        Plugin plugin = Stubs.plugin(() -> current);
+        Player alice = Stubs.player(plugin, ALICE, "alice");
+        PermissionManager manager = new PermissionManager(plugin, new Metrics(false));
+        Stubs.players.put(ALICE, alice);
+        manager.registerPlayer(alice);
+
+        AtomicBoolean done = new AtomicBoolean();
+        ExecutorService executor = Executors.newFixedThreadPool(READERS);
+        List<Future<String>> readers = new ArrayList<>();
+        for (int i = 0; i < READERS; i++) {
+            readers.add(executor.submit(() -> {
+                while (!done.get()) {
+                    String failure = check(manager, alice);
+                    if (failure != null) {
+                        return failure;
+                    }
+                }
+                return null;
+            }));
+        }
+        try {
+            for (int i = 1; i <= RELOADS && !isAnyDone(readers); i++) {
+                current = configs[i % 2];
+                manager.reload();
+                manager.applyReload();
+            }
+        } finally {
+            done.set(true);
+            executor.shutdown();
+        }
+        for (Future<String> reader : readers) {
+            assertNull(reader.get(30, TimeUnit.SECONDS));
+        }
+    }
+
+    private static boolean isAnyDone(List<Future<String>> readers) {
+        for (Future<String> reader : readers) {
+            if (reader.isDone()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // a description of what was inconsistent, or null
+    private static String check(PermissionManager manager, Player player) {
+        @SuppressWarnings("deprecation")
+        List<Group> groups = manager.getGroups("alice");
+        if (groups.size() != 1 || !groups.get(0).getPrefix().equals("[" + groups.get(0).getName() + "]")) {
+            return "getGroups found a group missing from its snapshot";
+        }
+        PermissionInfo info = manager.getPlayerInfo(ALICE.toString());
+        if (info == null || info.getPermissions().size() != 1) {
+            return "getPlayerInfo returned a partial user";
+        }
+        if (manager.getPlayerPermission(player, "check.node") == null) {
+            return "getPlayerPermission resolved the user against groups of another snapshot";
+        }
+        return null;
+    }
+
+    /**
+     * A configuration in which alice is only in the given group, which sets the checked node to the value. The
+     * filler nodes make every reload take long enough for readers to run into it.
+     */
+    private static YamlConfiguration config(String group, boolean value) {
+        YamlConfiguration result = Stubs.config();
+        result.set("recalculate-budget", 0);
+        ConfigurationSection node = result.createSection("groups/" + group);
+        node.set("prefix", "[" + group + "]");
+        ConfigurationSection permissions = node.createSection("permissions");
+        permissions.set("check.node", value);
+        for (int i = 0; i < 200; i++) {
+            permissions.set("filler." + group + i, true);
+        }
+        ConfigurationSection user = result.createSection("users/" + ALICE);
+        user.set("name", "alice");
+        user.set("groups", Collections.singletonList(group));
+        user.createSection("permissions").set("user." + group, true);
+        for (int i = 2; i < 100; i++) {
+            ConfigurationSection other = result.createSection("users/" + new UUID(0, i));
+            other.set("name", "player" + i);
+            other.set("groups", Collections.singletonList(group));
+        }
+        return result;
+    }
+}
@@ -0,0 +1,120 @@
+package ru.gtncraft.permissions;
+
+import org.bukkit.Bukkit;
+import org.bukkit.Server;
+import org.bukkit.World;
+import org.bukkit.configuration.file.FileConfiguration;
+import org.bukkit.configuration.file.YamlConfiguration;
+import org.bukkit.entity.Player;
+import org.bukkit.permissions.PermissionAttachment;
+import org.bukkit.plugin.Plugin;
+import org.bukkit.plugin.PluginManager;
+
+import java.lang.reflect.Proxy;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Function;
+import java.util.function.Supplier;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Just enough of a server for the manager to run without one. Every method not given to a stub returns nothing,
+ * zero or false.
+ */
+final class Stubs {
+
+    static final Logger LOGGER = Logger.getLogger("Permissions");
+    static final World WORLD = stub(World.class, Collections.singletonMap("getName", args -> "world"));
+    // the players the server knows, by UUID
+    static final Map<UUID, Player> players = new ConcurrentHashMap<>();
+
+    private Stubs() {
+    }
+
+    /**
+     * Installs the server, once for every test.
+     */
+    static void install() {
+        if (Bukkit.getServer() != null) {
+            return;
+        }
+        LOGGER.setLevel(Level.WARNING);
+        PluginManager pluginManager = stub(PluginManager.class, Collections.emptyMap());
+        Map<String, Function<Object[], Object>> methods = new HashMap<>();
+        methods.put("getLogger", args -> LOGGER);
+        methods.put("getName", args -> "Stub");
+        methods.put("getVersion", args -> "1.0");
+        methods.put("getBukkitVersion", args -> "1.7.10-R0.1-SNAPSHOT");
+        methods.put("getPluginManager", args -> pluginManager);
+        methods.put("getWorlds", args -> Collections.singletonList(WORLD));
+        methods.put("getPlayer", args -> args[0] instanceof UUID ? players.get(args[0]) : null);
+        methods.put("isPrimaryThread", args -> true);
+        Bukkit.setServer(stub(Server.class, methods));
+    }
+
+    /**
+     * @param config Supplies the configuration whenever the plugin is asked for it.
+     */
+    static Plugin plugin(Supplier<FileConfiguration> config) {
+        Map<String, Function<Object[], Object>> methods = new HashMap<>();
+        methods.put("getConfig", args -> config.get());
+        methods.put("getLogger", args -> LOGGER);
+        methods.put("getName", args -> "Permissions");
+        methods.put("isEnabled", args -> true);
+        return stub(Plugin.class, methods);
+    }
+
+    static Player player(Plugin plugin, UUID uuid, String name) {
+        Player[] player = new Player[1];
+        Map<String, Function<Object[], Object>> methods = new HashMap<>();
+        methods.put("getUniqueId", args -> uuid);
+        methods.put("getName", args -> name);
+        methods.put("getWorld", args -> WORLD);
+        methods.put("isOnline", args -> true);
+        methods.put("addAttachment", args -> new PermissionAttachment(plugin, player[0]));
+        player[0] = stub(Player.class, methods);
+        return player[0];
+    }
+
+    /**
+     * An empty configuration with the path separator the plugin uses.
+     */
+    static YamlConfiguration config() {
+        YamlConfiguration result = new YamlConfiguration();
+        result.options().pathSeparator('/');
+        return result;
+    }
+
+    static <T> T stub(Class<T> type, Map<String, Function<Object[], Object>> methods) {
+        return type.cast(Proxy.newProxyInstance(Stubs.class.getClassLoader(), new Class<?>[]{type},
+                (proxy, method, args) -> {
+                    Function<Object[], Object> implementation = methods.get(method.getName());
+                    if (implementation != null) {
+                        return implementation.apply(args);
+                    }
+                    switch (method.getName()) {
+                        case "equals":
+                            return proxy == args[0];
+                        case "hashCode":
+                            return System.identityHashCode(proxy);
+                        case "toString":
+                            return type.getSimpleName();
+                    }
+                    Class<?> result = method.getReturnType();
+                    if (result == boolean.class) {
+                        return false;
+                    } else if (result == void.class || !result.isPrimitive()) {
+                        return null;
+                    } else if (result == long.class) {
+                        return 0L;
+                    } else if (result == double.class) {
+                        return 0d;
+                    }
+                    return 0;
+                }));
+    }
+}
@@ -0,0 +1,130 @@
+package ru.gtncraft.permissions;
+
+import com.google.common.collect.ImmutableMap;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.util.*;
+
+import static org.junit.Assert.*;
+
+public class YamlStreamTest {
+
+    @Test
+    public void recordsSurviveARoundTrip() throws Exception {
+        Map<String, Object> admin = new LinkedHashMap<>();
+        admin.put("prefix", "Admin");
+        admin.put("inheritance", Arrays.asList("default", "mod"));
+        admin.put("permissions", ImmutableMap.of("permissions.reload", true, "essentials", ImmutableMap.of("fly", false)));
+        admin.put("worlds", ImmutableMap.of("nether", ImmutableMap.of("essentials.god", true)));
+        Map<String, Object> user = new LinkedHashMap<>();
+        // strings which would be read as something else are kept as strings
+        user.put("name", "true");
+        user.put("prefix", "123");
+        user.put("groups", Arrays.asList("admin", "~", "yes"));
+        user.put("expires", ImmutableMap.of("groups", ImmutableMap.of("admin", 1767225600000L)));
+
+        String file = write(ImmutableMap.of("admin", admin), ImmutableMap.of("069a79f4-44e9-4726-a5be-fca90e38aaf5", user));
+        List<YamlStream.Record> records = read(file);
+
+        assertEquals(2, records.size());
+        assertEquals(YamlStream.GROUPS, records.get(0).section);
+        assertEquals("admin", records.get(0).key);
+        assertEquals(admin, records.get(0).value);
+        assertEquals(YamlStream.USERS, records.get(1).section);
+        assertEquals("069a79f4-44e9-4726-a5be-fca90e38aaf5", records.get(1).key);
+        assertEquals(user, records.get(1).value);
+    }
+
+    @Test
+    public void numbersAreReadLikeTheConfigurationDoes() throws Exception {
+        Map<String, Object> value = read("users:\n  a:\n    small: 42\n    large: 1767225600000\n"
+                + "    hex: 0x1F\n    float: 1.5\n    text: '42'\n    empty: ~\n").get(0).value;
+        assertEquals(42, value.get("small"));
+        assertEquals(1767225600000L, value.get("large"));
+        assertEquals(31, value.get("hex"));
+        assertEquals(1.5, value.get("float"));
+        assertEquals("42", value.get("text"));
+        assertTrue(value.containsKey("empty"));
+        assertNull(value.get("empty"));
+    }
+
+    @Test
+    public void everythingElseIsSkipped() throws Exception {
+        List<YamlStream.Record> records = read("format: '%name: %message'\nsave-interval: 40\n"
+                + "other:\n  users:\n    a:\n      groups: [x]\n"
+                + "GROUPS:\n  default:\n    permissions:\n      permissions.build: false\n"
+                + "list: [1, 2, {users: 3}]\n");
+        assertEquals(1, records.size());
+        assertEquals(YamlStream.GROUPS, records.get(0).section);
+        assertEquals("default", records.get(0).key);
+    }
+
+    @Test
+    public void anEmptyFileHasNoRecords() throws Exception {
+        assertTrue(read("").isEmpty());
+        assertTrue(read("# nothing\n").isEmpty());
+        assertTrue(read("users: {}\n").isEmpty());
+    }
+
+    @Test
+    public void invalidRecordsAreReportedWithTheirLine() {
+        assertInvalid("users:\n  a:\n    groups: [x]\n  b: nothing\n", "Line 4: user b isn't a mapping");
+        assertInvalid("groups:\n  default:\n    inheritance: admin\n", "Line 2: group default: inheritance isn't a list of names");
+        assertInvalid("groups:\n  default:\n    permissions:\n      a.b: yes\n      c.d: 1\n",
+                "Line 2: group default: permissions/c.d isn't true or false");
+        assertInvalid("users:\n  a:\n    worlds:\n      nether: [x]\n", "Line 2: user a: worlds/nether isn't a mapping");
+        assertInvalid("users:\n  a:\n    name: [x]\n", "Line 2: user a: name isn't a plain value");
+        assertInvalid("- a\n- b\n", "Line 1: the file isn't a mapping");
+        assertInvalid("users:\n  a: &x\n    groups: [x]\n  b: *x\n", "Line 4: aliases aren't supported");
+    }
+
+    @Test
+    public void aSyntaxErrorIsReportedWithItsLine() {
+        try {
+            read("groups:\n  default:\n    prefix: 'unterminated\n");
+            fail();
+        } catch (YamlStream.InvalidRecordException ex) {
+            assertTrue(ex.getMessage(), ex.getMessage().startsWith("Line 4: "));
+        }
+    }
+
+    private static void assertInvalid(String file, String message) {
+        try {
+            read(file);
+            fail("read " + file);
+        } catch (YamlStream.InvalidRecordException ex) {
+            assertEquals(message, ex.getMessage());
+        }
+    }
+
+    private static String write(Map<String, Map<String, Object>> groups, Map<String, Map<String, Object>> users)
+            throws IOException {
+        StringWriter result = new StringWriter();
+        try (YamlStream.Writer out = new YamlStream.Writer(result)) {
+            out.section(YamlStream.GROUPS);
+            for (Map.Entry<String, Map<String, Object>> group : groups.entrySet()) {
+                out.record(group.getKey(), group.getValue());
+            }
+            out.section(YamlStream.USERS);
+            for (Map.Entry<String, Map<String, Object>> user : users.entrySet()) {
+                out.record(user.getKey(), user.getValue());
+            }
+        }
+        return result.toString();
+    }
+
+    private static List<YamlStream.Record> read(String file) throws YamlStream.InvalidRecordException {
+        List<YamlStream.Record> result = new ArrayList<>();
+        try (YamlStream.Reader in = new YamlStream.Reader(new StringReader(file))) {
+            for (YamlStream.Record record; (record = in.next()) != null; ) {
+                result.add(record);
+            }
+        } catch (IOException ex) {
+            throw new AssertionError(ex);
+        }
+        return result;
+    }
+}